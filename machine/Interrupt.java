@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,6 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
     }
 
     /**
@@ -124,13 +122,56 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (traceInt) {
+	    Lib.debug(dbgInt,
+		      "Scheduling the " + type +
+		      " interrupt handler at time = " + time);
+	}
+
+	if (numPending == pendingTimes.length)
+	    growPending();
+
+	// sift the new interrupt up from the bottom of the heap
+	long id = numPendingInterruptsCreated++;
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(time, id, pendingTimes[parent], pendingIds[parent]))
+		break;
+	    movePending(parent, i);
+	    i = parent;
+	}
+	setPending(i, time, id, type, handler);
+
+	nextDueTime = pendingTimes[0];
+    }
+
+    /**
+     * Cancel the first pending interrupt with the specified handler, so that
+     * a device can move its interrupt instead of leaving a stale one behind.
+     * The pending interrupts are searched one by one, which is cheap since
+     * only a handful are ever pending.
+     */
+    private boolean cancel(Runnable handler) {
+	int found = -1;
+	for (int i=0; i<numPending; i++) {
+	    if (pendingHandlers[i] == handler &&
+		(found == -1 || before(i, found)))
+		found = i;
+	}
+
+	if (found == -1)
+	    return false;
 
-	pending.add(toOccur);
+	if (traceInt) {
+	    Lib.debug(dbgInt,
+		      "Cancelling the " + pendingTypes[found] +
+		      " interrupt handler at time = " + pendingTimes[found]);
+	}
+
+	removePending(found);
+	return true;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,43 +186,113 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	else if (stats.totalTicks < nextDueTime) {
+	    // nothing is due
+	    enabled = true;
+	    return;
+	}
 
 	enabled = false;
 	checkIfDue();
 	enabled = true;
     }
 
+    private void tickUser(int count) {
+	Lib.assertTrue(count > 0);
+
+	// keep the tick-by-tick trace when it's being watched
+	if (traceInt) {
+	    for (int i=0; i<count; i++)
+		tick(false);
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+
+	if (stats.totalTicks < nextDueTime) {
+	    enabled = true;
+	    return;
+	}
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    /**
+     * Advance simulated time to the last kernel tick before the next pending
+     * interrupt is due. The kernel calls this when no thread can run until an
+     * interrupt handler makes one ready, so that instead of yielding once per
+     * kernel tick until then, the idle thread can skip straight to the tick
+     * on which the interrupt occurs. The skipped time is accounted as kernel
+     * ticks, exactly as though the idle thread had spent it yielding.
+     *
+     * <p>
+     * Interrupts must be disabled. Nothing is skipped while tracing
+     * interrupts (so the trace still shows every tick), or while an interrupt
+     * handler is running (since it may still schedule interrupts relative to
+     * the current time).
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (traceInt || numHandlersRunning > 0 || numPending == 0)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long idleTicks =
+	    (nextDueTime - stats.totalTicks - 1) / Stats.KernelTick;
+	if (idleTicks <= 0)
+	    return;
+	
+	stats.kernelTicks += idleTicks * Stats.KernelTick;
+	stats.totalTicks += idleTicks * Stats.KernelTick;
+    }
+
+    private int userTicksUntilDue() {
+	if (numPending == 0)
+	    return Integer.MAX_VALUE;
+
+	long ticks = nextDueTime - privilege.stats.totalTicks;
+	long count = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+	return (int) Math.max(1, Math.min(count, Integer.MAX_VALUE));
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    print();
 
-	if (pending.isEmpty())
+	if (nextDueTime > time)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
-	    return;
-
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (traceInt)
+	    Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (nextDueTime <= time) {
+	    String type = pendingTypes[0];
+	    Runnable handler = pendingHandlers[0];
+	    removePending(0);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (traceInt)
+		Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    numHandlersRunning++;
+	    handler.run();
+	    numHandlersRunning--;
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,62 +303,149 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// list them in the order they will occur
+	Integer[] order = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    order[i] = i;
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+		}
+	    });
+
+	for (int i=0; i<numPending; i++) {
+	    System.out.println("  " + pendingTypes[order[i]] +
+			       ", scheduled at " + pendingTimes[order[i]]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Remove the pending interrupt at index <i>i</i> of the heap.
+     */
+    private void removePending(int i) {
+	int last = --numPending;
+	long time = pendingTimes[last], id = pendingIds[last];
+	String type = pendingTypes[last];
+	Runnable handler = pendingHandlers[last];
+	setPending(last, 0, 0, null, null);
+
+	if (last == 0) {
+	    nextDueTime = Long.MAX_VALUE;
+	    return;
+	}
+	if (i == last) {
+	    nextDueTime = pendingTimes[0];
+	    return;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	// the last interrupt fills the hole; it may belong above it
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(time, id, pendingTimes[parent], pendingIds[parent]))
+		break;
+	    movePending(parent, i);
+	    i = parent;
+	}
 
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
+	// or below it
+	while (2*i + 1 < numPending) {
+	    int child = 2*i + 1;
+	    if (child+1 < numPending && before(child+1, child))
+		child++;
+	    if (!before(pendingTimes[child], pendingIds[child], time, id))
+		break;
+	    movePending(child, i);
+	    i = child;
 	}
+	setPending(i, time, id, type, handler);
 
-	long time;
-	String type;
-	Runnable handler;
+	nextDueTime = pendingTimes[0];
+    }
 
-	private long id;
+    /**
+     * Return true if an interrupt at <i>time1</i> with id <i>id1</i> occurs
+     * before one at <i>time2</i> with id <i>id2</i>. Interrupts scheduled for
+     * the same time occur in the order they were scheduled.
+     */
+    private static boolean before(long time1, long id1, long time2, long id2) {
+	return time1 < time2 || (time1 == time2 && id1 < id2);
     }
-    
+
+    private boolean before(int i, int j) {
+	return before(pendingTimes[i], pendingIds[i],
+		      pendingTimes[j], pendingIds[j]);
+    }
+
+    private void setPending(int i, long time, long id, String type,
+			    Runnable handler) {
+	pendingTimes[i] = time;
+	pendingIds[i] = id;
+	pendingTypes[i] = type;
+	pendingHandlers[i] = handler;
+    }
+
+    private void movePending(int from, int to) {
+	setPending(to, pendingTimes[from], pendingIds[from],
+		   pendingTypes[from], pendingHandlers[from]);
+    }
+
+    private void growPending() {
+	int length = pendingTimes.length * 2;
+	pendingTimes = Arrays.copyOf(pendingTimes, length);
+	pendingIds = Arrays.copyOf(pendingIds, length);
+	pendingTypes = Arrays.copyOf(pendingTypes, length);
+	pendingHandlers = Arrays.copyOf(pendingHandlers, length);
+    }
+
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * The pending interrupts, as a binary heap ordered by time and then id,
+     * stored in parallel arrays. <tt>numPending</tt> entries are in use.
+     */
+    private long[] pendingTimes = new long[8];
+    private long[] pendingIds = new long[8];
+    private String[] pendingTypes = new String[8];
+    private Runnable[] pendingHandlers = new Runnable[8];
+    private int numPending = 0;
+    /** The number of interrupt handlers that have started but not returned. */
+    private int numHandlersRunning = 0;
+    /**
+     * The time the first pending interrupt is due, or
+     * <tt>Long.MAX_VALUE</tt> if none are pending. A tick before this time has
+     * nothing to do.
+     */
+    private long nextDueTime = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
+    /** Tested on every tick, so resolved once, like the processor's flags. */
+    private static final boolean traceInt = Lib.test(dbgInt);
 
     private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 	public void schedule(long when, String type, Runnable handler) {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public boolean cancel(Runnable handler) {
+	    return Interrupt.this.cancel(handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int count) {
+	    Interrupt.this.tickUser(count);
+	}
+
+	public int userTicksUntilDue() {
+	    return Interrupt.this.userTicksUntilDue();
+	}
     }
 }
@@ -2,10 +2,13 @@
 
 package nachos.machine;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteOrder;
 import java.security.PrivilegedAction;
 import java.util.Random;
 
@@ -230,8 +233,7 @@ public final class Lib {
      * @param	value	the value to convert.
      */
     public static void bytesFromShort(byte[] array, int offset, short value) {
-	array[offset+0] = (byte) ((value>>0)&0xFF);
-	array[offset+1] = (byte) ((value>>8)&0xFF);
+	shortView.set(array, offset, value);
     }
 
     /**
@@ -242,10 +244,7 @@ public final class Lib {
      * @param	value	the value to convert.
      */
     public static void bytesFromInt(byte[] array, int offset, int value) {
-	array[offset+0] = (byte) ((value>>0) &0xFF);
-	array[offset+1] = (byte) ((value>>8) &0xFF);
-	array[offset+2] = (byte) ((value>>16)&0xFF);
-	array[offset+3] = (byte) ((value>>24)&0xFF);
+	intView.set(array, offset, value);
     }
 
     /**
@@ -295,8 +294,7 @@ public final class Lib {
      * @return	the corresponding short value.
      */
     public static short bytesToShort(byte[] array, int offset) {
-	return (short) ((((short) array[offset+0] & 0xFF) << 0) |
-			(((short) array[offset+1] & 0xFF) << 8));
+	return (short) shortView.get(array, offset);
     }
 
     /**
@@ -319,10 +317,7 @@ public final class Lib {
      * @return	the corresponding int value.
      */
     public static int bytesToInt(byte[] array, int offset) {
-	return (int) ((((int) array[offset+0] & 0xFF) << 0)  |
-		      (((int) array[offset+1] & 0xFF) << 8)  |
-		      (((int) array[offset+2] & 0xFF) << 16) |
-		      (((int) array[offset+3] & 0xFF) << 24));
+	return (int) intView.get(array, offset);
     }
     
     /**
@@ -349,6 +344,18 @@ public final class Lib {
 	}
     }
 
+    /**
+     * Little-endian views of byte arrays as shorts and ints, so that the
+     * byte string conversions are single loads and stores rather than one
+     * access per byte. Unaligned offsets are allowed.
+     */
+    private static final VarHandle shortView =
+	MethodHandles.byteArrayViewVarHandle(short[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle intView =
+	MethodHandles.byteArrayViewVarHandle(int[].class,
+					     ByteOrder.LITTLE_ENDIAN);
+
     /**
      * Convert to a string from a possibly null-terminated array of bytes.
      *
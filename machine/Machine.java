@@ -97,6 +97,11 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (processor != null) {
+	    processor.printProfile();
+	    processor.printDigest();
+	    processor.printBenchmark();
+	}
 	terminate();
     }
 
@@ -317,7 +322,9 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor. Only one is simulated, because
+     * <tt>KThread</tt> and the synchronization primitives assume that a
+     * single thread runs at a time.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
@@ -4,6 +4,16 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivilegedExceptionAction;
+import java.security.PrivilegedActionException;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -45,12 +55,65 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	allocateMemory(pageSize * numPhysPages);
+
+	if (Config.getBoolean("Processor.predecode", true))
+	    predecoded = new Decoded[numPhysPages][];
+	else
+	    predecoded = null;
+
+	engine = Config.getString("Processor.engine", "instructions");
+	if (engine.equals("blocks"))
+	    blocks = new Block[numPhysPages][];
+	else
+	    Lib.assertTrue(engine.equals("instructions"),
+			   "unknown Processor.engine: " + engine);
+
+	benchmark = Config.getBoolean("Processor.benchmark", false);
+
+	if (Config.getBoolean("Processor.profile", false))
+	    profiler = new Profiler();
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    Lib.assertTrue(tlbSize > 0);
+
+	    String organization =
+		Config.getString("Processor.tlbOrganization",
+				 "fully-associative");
+	    if (organization.equals("fully-associative"))
+		tlbWays = tlbSize;
+	    else if (organization.equals("direct-mapped"))
+		tlbWays = 1;
+	    else if (organization.equals("set-associative"))
+		tlbWays = Config.getInteger("Processor.tlbWays");
+	    else
+		Lib.assertNotReached("unknown Processor.tlbOrganization: " +
+				     organization);
+
+	    Lib.assertTrue(tlbWays > 0 && tlbSize % tlbWays == 0,
+			   "Processor.tlbWays must divide Processor.tlbSize");
+	    tlbSets = tlbSize / tlbWays;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // large fully associative TLBs are looked up through a hash index
+	    if (tlbSets == 1 && tlbSize > tlbScanLimit) {
+		int buckets = 1;
+		while (buckets < tlbSize)
+		    buckets *= 2;
+
+		tlbBuckets = new int[buckets];
+		tlbChains = new int[tlbSize];
+		for (int i=1; i<buckets; i++)
+		    tlbBuckets[i] = -1;
+
+		// every entry starts out with vpn 0
+		for (int i=0; i<tlbSize; i++)
+		    tlbChains[i] = i+1 < tlbSize ? i+1 : -1;
+	    }
 	}
 	else {
 	    translations = null;
@@ -91,7 +154,19 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	if (benchmark && startTime == 0) {
+	    startTime = System.nanoTime();
+	    startTicks = privilege.stats.userTicks;
+	}
+
 	Instruction inst = new Instruction();
+
+	// tracing and profiling need the per-instruction fetch, so leave
+	// blocks alone
+	if (blocks != null && profiler == null && !traceProcessor &&
+	    !traceDisassemble && !traceFullDisassemble) {
+	    runBlocks(inst);
+	}
 	
 	while (true) {
 	    try {
@@ -105,6 +180,47 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions a basic block at a time. Never returns.
+     *
+     * <p>
+     * A block never runs past the instruction at which the next pending
+     * interrupt becomes due, and its ticks are charged before any exception
+     * it raises is handled, so interrupts and exceptions are delivered at
+     * exactly the same simulated times as by <tt>Instruction.run()</tt>.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runBlocks(Instruction inst) {
+	// the kernel may have loaded new code since this thread last ran
+	blockEpoch++;
+	
+	while (true) {
+	    int limit = privilege.interrupt.userTicksUntilDue();
+	    inst.executed = 0;
+	    
+	    try {
+		inst.runBlock(limit);
+	    }
+	    catch (MipsException e) {
+		if (inst.executed > 0)
+		    privilege.interrupt.tickUser(inst.executed);
+
+		e.handle();
+		blockEpoch++;
+		
+		privilege.interrupt.tick(false);
+		continue;
+	    }
+
+	    privilege.interrupt.tickUser(inst.executed);
+
+	    // interrupt handlers (and other threads) may have written memory
+	    if (inst.executed == limit)
+		blockEpoch++;
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -188,6 +304,21 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB. The TLB is divided
+     * into <tt>getTLBSize() / getTLBWays()</tt> sets of <tt>getTLBWays()</tt>
+     * consecutive entries, and virtual page <i>vpn</i> can only be found in
+     * set <tt>vpn % (getTLBSize() / getTLBWays())</tt>. A fully associative
+     * TLB has a single set, and a direct-mapped TLB has one entry per set.
+     *
+     * @return	the number of entries in each set of the TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +336,11 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * By default the TLB is fully associative, so the location of an entry
+     * within the TLB does not affect anything. Otherwise, an entry is only
+     * used if it is written to the set its virtual page maps to (see
+     * <tt>getTLBWays()</tt>). If more than one valid entry maps the same
+     * virtual page, the one with the lowest index is used.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +349,13 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	if (tlbChains != null) {
+	    unlinkTLBEntry(number, translations[number].vpn);
+	    linkTLBEntry(number, entry.vpn);
+	}
+
 	translations[number] = new TranslationEntry(entry);
+	lastFetchEntry = null;
     }
 
     /**
@@ -232,12 +372,134 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Only available when physical memory is on the Java heap (the default);
+     * see <tt>getMemoryBuffer()</tt>.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "physical memory is not a byte array; use " +
+		       "getMemoryBuffer() or read/writePhysicalMemory()");
+	
 	return mainMemory;
     }
 
+    /**
+     * Return a little-endian view of physical memory, however it is backed.
+     * The buffer shares its contents with physical memory, but has its own
+     * position and limit.
+     *
+     * @return	a buffer covering all of physical memory.
+     */
+    public ByteBuffer getMemoryBuffer() {
+	return memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copy bytes out of physical memory.
+     *
+     * @param	paddr	the first physical address to read.
+     * @param	data	the array to copy into.
+     * @param	offset	the index in <i>data</i> of the first byte to copy.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readPhysicalMemory(int paddr, byte[] data, int offset,
+				   int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr + length <= memory.capacity());
+
+	ByteBuffer buffer = memory.duplicate();
+	buffer.position(paddr);
+	buffer.get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes into physical memory.
+     *
+     * @param	paddr	the first physical address to write.
+     * @param	data	the array to copy from.
+     * @param	offset	the index in <i>data</i> of the first byte to copy.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writePhysicalMemory(int paddr, byte[] data, int offset,
+				    int length) {
+	Lib.assertTrue(paddr >= 0 && length >= 0 &&
+		       paddr + length <= memory.capacity());
+
+	ByteBuffer buffer = memory.duplicate();
+	buffer.position(paddr);
+	buffer.put(data, offset, length);
+    }
+
+    /**
+     * Allocate physical memory, as selected by <tt>Processor.memory</tt>:
+     * <tt>heap</tt> (the default) for a byte array, <tt>direct</tt> for an
+     * off-heap buffer, or <tt>mapped</tt> for a mapping of the file named
+     * by <tt>Processor.memoryFile</tt>. A mapped file holds a snapshot of
+     * physical memory once Nachos exits.
+     *
+     * @param	size	the number of bytes of physical memory.
+     */
+    private void allocateMemory(final int size) {
+	String backing = Config.getString("Processor.memory", "heap");
+
+	if (backing.equals("heap")) {
+	    mainMemory = new byte[size];
+	    memory = ByteBuffer.wrap(mainMemory);
+	}
+	else if (backing.equals("direct")) {
+	    memory = ByteBuffer.allocateDirect(size);
+	}
+	else if (backing.equals("mapped")) {
+	    final String fileName = Config.getString("Processor.memoryFile");
+	    Lib.assertTrue(fileName != null,
+			   "Processor.memoryFile is required for mapped memory");
+	    
+	    try {
+		memory = (ByteBuffer) privilege.doPrivileged(
+		    new PrivilegedExceptionAction<ByteBuffer>() {
+			public ByteBuffer run() throws IOException {
+			    return mapMemory(fileName, size);
+			}
+		    });
+	    }
+	    catch (PrivilegedActionException e) {
+		Lib.assertNotReached("could not map " + fileName + ": " +
+				     e.getException());
+	    }
+
+	    // write the snapshot back to the file on exit
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() {
+			((MappedByteBuffer) memory).force();
+		    }
+		});
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memory: " + backing);
+	}
+
+	memory.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer mapMemory(String fileName, int size)
+	throws IOException {
+	FileChannel channel =
+	    FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+			     StandardOpenOption.READ,
+			     StandardOpenOption.WRITE,
+			     StandardOpenOption.TRUNCATE_EXISTING);
+	try {
+	    // the mapping stays valid after the channel is closed
+	    return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+	finally {
+	    channel.close();
+	}
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -275,6 +537,184 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Print the rate at which user instructions have been executed since
+     * <tt>run()</tt> was first called, if <tt>Processor.benchmark</tt> is
+     * set. Called by <tt>Machine.halt()</tt>.
+     */
+    void printBenchmark() {
+	if (!benchmark || startTime == 0)
+	    return;
+
+	long instructions = (privilege.stats.userTicks - startTicks) /
+	    Stats.UserTick;
+	long nanos = Math.max(System.nanoTime() - startTime, 1);
+
+	System.out.println("Processor: " + instructions + " instructions in "
+			   + (nanos / 1000000) + " ms ("
+			   + (instructions * 1000000000L / nanos)
+			   + " instructions/sec, " + engine
+			   + " engine, predecode "
+			   + (predecoded != null ? "on" : "off") + ")");
+    }
+
+    /**
+     * Print the profile gathered by the profiler, if
+     * <tt>Processor.profile</tt> is set. Called by <tt>Machine.halt()</tt>.
+     */
+    void printProfile() {
+	if (profiler != null)
+	    profiler.print();
+    }
+
+    /**
+     * Return the profiler, or <tt>null</tt> if profiling is disabled.
+     *
+     * @return	the profiler.
+     */
+    Profiler getProfiler() {
+	return profiler;
+    }
+
+    /**
+     * Return the mnemonic for an opcode number, as used by the profiler.
+     * Opcode numbers 0 to 63 are the primary opcodes, 64 to 127 are the
+     * <tt>special</tt> function codes, and 128 to 159 are the
+     * <tt>regimm</tt> codes.
+     *
+     * @param	opcode	the opcode number.
+     * @return	the mnemonic for the opcode.
+     */
+    static String getOpcodeName(int opcode) {
+	Lib.assertTrue(opcode >= 0 && opcode < numOpcodes);
+
+	Mips info;
+	if (opcode < 64)
+	    info = Mips.optable[opcode];
+	else if (opcode < 128)
+	    info = Mips.specialtable[opcode-64];
+	else
+	    info = Mips.regimmtable[opcode-128];
+
+	return info.name.substring(0, info.name.indexOf(' '));
+    }
+
+    /** The number of distinct opcode numbers. */
+    static final int numOpcodes = 160;
+
+    /**
+     * Print a checksum of the user registers and main memory, if
+     * <tt>Processor.printDigest</tt> is set. Every engine must leave the
+     * machine in the same state, so this is what
+     * <tt>test/compare-engines.sh</tt> compares. Called by
+     * <tt>Machine.halt()</tt>.
+     */
+    void printDigest() {
+	if (!Config.getBoolean("Processor.printDigest", false))
+	    return;
+
+	java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+	byte[] buffer = new byte[4];
+	for (int i=0; i<numUserRegisters; i++) {
+	    Lib.bytesFromInt(buffer, 0, registers[i]);
+	    crc.update(buffer);
+	}
+	crc.update(memory.duplicate());
+
+	System.out.println("Processor: state digest 0x" +
+			   Lib.toHexString((int) crc.getValue()));
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i>, which
+     * was fetched from physical address <i>paddr</i>. Entries are keyed by
+     * physical address, so they survive page table and TLB changes, and are
+     * checked against the fetched word, so writes to the page (whether by
+     * user stores or by the kernel through <tt>getMemory()</tt>,
+     * <tt>getMemoryBuffer()</tt> or <tt>writePhysicalMemory()</tt>) are never
+     * missed, however physical memory is backed.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private Decoded predecode(int paddr, int value) {
+	Decoded[] page = predecoded[paddr / pageSize];
+	if (page == null)
+	    page = predecoded[paddr / pageSize] = new Decoded[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value)
+	    page[index] = decoded = new Decoded(value);
+
+	return decoded;
+    }
+
+    /**
+     * Return the basic block starting at physical address <i>paddr</i>,
+     * building it if it is not cached or if any of its instructions have
+     * been overwritten since it was built.
+     *
+     * <p>
+     * A block ends after a branch and its delay slot, after an instruction
+     * that always raises an exception, or at the end of the page, so that a
+     * single translation of the PC covers the whole block.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block starting at <i>paddr</i>.
+     */
+    private Block getBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	Block[] page = blocks[ppn];
+	if (page == null)
+	    page = blocks[ppn] = new Block[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Block block = page[index];
+	if (block != null) {
+	    if (block.epoch == blockEpoch)
+		return block;
+	    
+	    if (block.isValid(memory)) {
+		block.epoch = blockEpoch;
+		return block;
+	    }
+	}
+
+	int end = (ppn+1) * pageSize;
+	int length = 0;
+	Decoded[] body = new Decoded[pageSize / 4 - index];
+	
+	for (int addr=paddr; addr<end; addr+=4) {
+	    int value = memory.getInt(addr);
+	    Decoded decoded =
+		(predecoded != null) ? predecode(addr, value) : new Decoded(value);
+	    body[length++] = decoded;
+
+	    if (decoded.endsBlock)
+		break;
+
+	    // include the delay slot, if it's on this page
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		if (addr+4 < end) {
+		    value = memory.getInt(addr+4);
+		    body[length++] = (predecoded != null) ?
+			predecode(addr+4, value) : new Decoded(value);
+		}
+		break;
+	    }
+	}
+
+	Decoded[] instructions = new Decoded[length];
+	System.arraycopy(body, 0, instructions, 0, length);
+	
+	block = page[index] = new Block(paddr, instructions);
+	block.epoch = blockEpoch;
+	return block;
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -294,7 +734,26 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, false);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, as above.
+     * Instruction fetches go through a one-entry cache of the last TLB entry
+     * they hit, since consecutive fetches are nearly always from the same
+     * page.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	fetching	<tt>true</tt> if the memory reference is an
+     *				instruction fetch.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  boolean fetching) throws MipsException {
+	if (traceProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -322,14 +781,17 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB set for a matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    if (fetching && lastFetchEntry != null &&
+		lastFetchEntry.vpn == vpn)
+		entry = lastFetchEntry;
+	    else
+		entry = findTLBEntry(vpn);
+
+	    if (fetching)
+		lastFetchEntry = entry;
+	    
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -357,11 +819,78 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (profiler != null)
+	    profiler.countReference(vpn, writing, fetching);
+
+	if (traceProcessor)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Return the valid TLB entry with the lowest index that maps the
+     * specified virtual page, looking only in the set the page maps to.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry findTLBEntry(int vpn) {
+	if (tlbChains != null) {
+	    for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i != -1;
+		 i=tlbChains[i]) {
+		if (translations[i].valid && translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	    return null;
+	}
+
+	int first = (vpn % tlbSets) * tlbWays;
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		return translations[i];
+	}
+	return null;
+    }
+
+    /**
+     * Add TLB entry <i>number</i> to the hash chain for <i>vpn</i>, keeping
+     * the chain in index order.
+     */
+    private void linkTLBEntry(int number, int vpn) {
+	int bucket = vpn & (tlbBuckets.length-1);
+
+	if (tlbBuckets[bucket] == -1 || tlbBuckets[bucket] > number) {
+	    tlbChains[number] = tlbBuckets[bucket];
+	    tlbBuckets[bucket] = number;
+	    return;
+	}
+
+	int i = tlbBuckets[bucket];
+	while (tlbChains[i] != -1 && tlbChains[i] < number)
+	    i = tlbChains[i];
+
+	tlbChains[number] = tlbChains[i];
+	tlbChains[i] = number;
+    }
+
+    /**
+     * Remove TLB entry <i>number</i> from the hash chain for <i>vpn</i>.
+     */
+    private void unlinkTLBEntry(int number, int vpn) {
+	int bucket = vpn & (tlbBuckets.length-1);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChains[number];
+	    return;
+	}
+
+	int i = tlbBuckets[bucket];
+	while (tlbChains[i] != number)
+	    i = tlbChains[i];
+
+	tlbChains[i] = tlbChains[number];
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -372,16 +901,22 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
-
-	if (Lib.test(dbgProcessor))
+	int paddr = translate(vaddr, size, false);
+	int value;
+	if (size == 4)
+	    value = memory.getInt(paddr);
+	else if (size == 2)
+	    value = memory.getShort(paddr);
+	else
+	    value = memory.get(paddr);
+
+	if (traceProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +934,23 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+	if (size == 4)
+	    memory.putInt(paddr, value);
+	else if (size == 2)
+	    memory.putShort(paddr, (short) value);
+	else
+	    memory.put(paddr, (byte) value);
+
+	if (blocks != null && blocks[paddr / pageSize] != null)
+	    blockEpoch++;
     }
 
     /**
@@ -541,6 +1084,25 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of sets in the TLB. */
+    private int tlbSets;
+    /**
+     * Fully associative TLBs larger than this are searched through
+     * <tt>tlbBuckets</tt> instead of entry by entry.
+     */
+    private static final int tlbScanLimit = 8;
+    /**
+     * For large fully associative TLBs, the first TLB index in each hash
+     * chain of virtual page numbers, or -1 if the chain is empty. Otherwise
+     * <tt>null</tt>.
+     */
+    private int[] tlbBuckets = null;
+    /** The next TLB index in each entry's hash chain, or -1. */
+    private int[] tlbChains = null;
+    /** The TLB entry that the last instruction fetch was translated by. */
+    private TranslationEntry lastFetchEntry = null;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,8 +1115,45 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
-    private byte[] mainMemory;
+    /** Main memory for user programs, in little-endian order. */
+    private ByteBuffer memory;
+    /**
+     * The array backing main memory, or <tt>null</tt> if it is not on the
+     * heap.
+     */
+    private byte[] mainMemory = null;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page, or <tt>null</tt> if predecoding is disabled. Pages are
+     * allocated the first time an instruction is fetched from them.
+     */
+    private Decoded[][] predecoded;
+
+    /** The name of the execution engine, from <tt>Processor.engine</tt>. */
+    private String engine;
+    /**
+     * Basic blocks, indexed by the physical page and word of their first
+     * instruction, or <tt>null</tt> if instructions are executed one at a
+     * time. Blocks are always interpreted; they are not translated to JVM
+     * bytecode.
+     */
+    private Block[][] blocks = null;
+    /**
+     * Incremented whenever memory that might hold a cached block may have
+     * been written. Blocks are checked against memory only when entered
+     * under a different epoch than the one they were last checked in.
+     */
+    private int blockEpoch = 0;
+
+    /** The profiler, or <tt>null</tt> if profiling is disabled. */
+    private Profiler profiler = null;
+
+    /** <tt>true</tt> if the instruction rate is reported on halt. */
+    private boolean benchmark;
+    /** The wall-clock time at which <tt>run()</tt> was first called. */
+    private long startTime = 0;
+    /** The number of user ticks when <tt>run()</tt> was first called. */
+    private long startTicks;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -563,6 +1162,16 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /*
+     * The debug flags tested on every instruction, resolved once so that the
+     * JIT can drop the tracing code entirely when they are off. Debug flags
+     * are set by Machine.processArgs(), before this class is initialized.
+     */
+    private static final boolean traceProcessor = Lib.test(dbgProcessor);
+    private static final boolean traceDisassemble = Lib.test(dbgDisassemble);
+    private static final boolean traceFullDisassemble =
+	Lib.test(dbgFullDisassemble);
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
@@ -589,7 +1198,7 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -612,6 +1221,10 @@ public final class Processor {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
 	    decode();
+
+	    if (profiler != null)
+		profiler.countInstruction(registers[regPC], opcode);
+	    
 	    execute();
 	    writeBack();
 	}	
@@ -621,83 +1234,98 @@ public final class Processor {
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int vaddr = registers[regPC];
+
+	    if (traceProcessor)
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    paddr = translate(vaddr, 4, false, true);
+	    value = memory.getInt(paddr);
+
+	    if (traceProcessor)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
+	/**
+	 * Execute the instructions of the block at the current PC, stopping
+	 * after <i>limit</i> instructions, at the end of the block, or after a
+	 * store that might have overwritten the block. <tt>executed</tt> is left holding the
+	 * number of instructions that completed.
+	 *
+	 * @param	limit	the most instructions to execute.
+	 */
+	public void runBlock(int limit) throws MipsException {
+	    int vaddr = registers[regPC];
+	    Block block = getBlock(translate(vaddr, 4, false, true));
+	    Decoded[] instructions = block.instructions;
+	    int epoch = blockEpoch;
+
+	    int count = Math.min(limit, instructions.length);
+	    for (int i=0; i<count; i++, vaddr+=4) {
+		// a branch in a delay slot can leave the block early
+		if (registers[regPC] != vaddr)
+		    return;
+
+		Decoded info = instructions[i];
+		decode(info);
+		execute();
+		writeBack();
+		executed++;
+
+		if (info.storing && blockEpoch != epoch)
+		    return;
+	    }
+	}
+
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    if (predecoded != null)
+		decode(predecode(paddr, value));
+	    else
+		decode(new Decoded(value));
+	}
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	private void decode(Decoded info) {
+	    opcode = info.opcode;
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,13 +1346,13 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble || traceFullDisassemble)
 		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1384,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1396,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (traceFullDisassemble &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1428,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1468,8 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (traceDisassemble && traceProcessor &&
+		!traceFullDisassemble)
 		System.out.print("\n");
 	}
 
@@ -1033,7 +1661,7 @@ public final class Processor {
 		registers[dstReg] = (int) dst;
 
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
+		if (traceFullDisassemble) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
 			System.out.print(" (delayed load)");
@@ -1046,13 +1674,16 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((traceDisassemble && !traceProcessor) ||
+		traceFullDisassemble)
 		System.out.print("\n");
 	}
     
+	/** The number of instructions completed by <tt>runBlock()</tt>. */
+	int executed;
+
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, opcode, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1694,120 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * extracted once so that they can be cached by <tt>predecode()</tt>.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int extended = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		opcode = 64 + func;
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		opcode = 128 + rt;
+		break;
+	    default:
+		info = Mips.optable[op];
+		opcode = op;
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branches use the sign-extended immediate
+	    branchOffset = extended<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = extended & 0xFFFF;
+	    else
+		imm = extended;
+
+	    storing = (operation == Mips.STORE || operation == Mips.SWL ||
+		       operation == Mips.SWR);
+	    endsBlock = (operation == Mips.SYSCALL ||
+			 operation == Mips.UNIMPL ||
+			 operation == Mips.INVALID);
+	}
+
+	final int value, opcode, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+	final boolean storing, endsBlock;
+    }
+
+    /**
+     * A run of instructions, starting at a fixed physical address, that is
+     * always entered at the top and executed in order.
+     */
+    private static class Block {
+	Block(int paddr, Decoded[] instructions) {
+	    this.paddr = paddr;
+	    this.instructions = instructions;
+	}
+
+	/**
+	 * Test whether the instruction words this block was built from are
+	 * still in memory.
+	 *
+	 * @param	memory	main memory.
+	 * @return	<tt>true</tt> if none of the words have changed.
+	 */
+	boolean isValid(ByteBuffer memory) {
+	    for (int i=0; i<instructions.length; i++) {
+		if (memory.getInt(paddr + i*4) !=
+		    instructions[i].value)
+		    return false;
+	    }
+	    return true;
+	}
+
+	final int paddr;
+	final Decoded[] instructions;
+	/** The value of <tt>blockEpoch</tt> when this block was last checked. */
+	int epoch;
+    }
+
     private static class Mips {
 	Mips() {
 	}
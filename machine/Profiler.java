@@ -0,0 +1,213 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * A profiler for user programs, enabled by setting <tt>Processor.profile</tt>
+ * in <tt>nachos.conf</tt>. It counts how many times each instruction is
+ * executed, how many times each kind of instruction is executed, and how
+ * many instruction fetches, reads and writes go to each virtual page.
+ *
+ * <p>
+ * Counts are kept by virtual address, so when several programs run, their
+ * counts are combined. When Nachos halts, the hottest instructions and the
+ * page counts are printed along with the COFF sections they fall in.
+ */
+final class Profiler {
+    /**
+     * Allocate a new profiler.
+     */
+    Profiler() {
+	hotSpots = Config.getInteger("Processor.profileHotSpots", 20);
+    }
+
+    /**
+     * Count the execution of an instruction.
+     *
+     * @param	pc	the virtual address of the instruction.
+     * @param	opcode	the opcode number of the instruction (see
+     *			<tt>Processor.getOpcodeName()</tt>).
+     */
+    void countInstruction(int pc, int opcode) {
+	int vpn = Processor.pageFromAddress(pc);
+	if (vpn >= pcCounts.length)
+	    pcCounts = Arrays.copyOf(pcCounts,
+				     newLength(pcCounts.length, vpn));
+
+	long[] page = pcCounts[vpn];
+	if (page == null)
+	    page = pcCounts[vpn] = new long[Processor.pageSize / 4];
+
+	page[Processor.offsetFromAddress(pc) / 4]++;
+	opcodeCounts[opcode]++;
+	numInstructions++;
+    }
+
+    /**
+     * Count a successfully translated memory reference.
+     *
+     * @param	vpn	the virtual page referenced.
+     * @param	writing	<tt>true</tt> if the reference is a write.
+     * @param	fetching	<tt>true</tt> if the reference is an
+     *				instruction fetch.
+     */
+    void countReference(int vpn, boolean writing, boolean fetching) {
+	if (vpn >= pageFetches.length) {
+	    int length = newLength(pageFetches.length, vpn);
+	    pageFetches = Arrays.copyOf(pageFetches, length);
+	    pageReads = Arrays.copyOf(pageReads, length);
+	    pageWrites = Arrays.copyOf(pageWrites, length);
+	}
+
+	if (fetching)
+	    pageFetches[vpn]++;
+	else if (writing)
+	    pageWrites[vpn]++;
+	else
+	    pageReads[vpn]++;
+    }
+
+    /**
+     * Remember where the sections of a COFF executable are, so that counts
+     * can be reported by section.
+     *
+     * @param	program	the name of the executable.
+     * @param	coff	the executable.
+     */
+    void addSections(String program, Coff coff) {
+	for (int i=0; i<coff.getNumSections(); i++)
+	    sections.add(new Section(program, coff.getSection(i)));
+    }
+
+    /**
+     * Print the hottest instructions, the instruction mix, and the page
+     * counts.
+     */
+    void print() {
+	System.out.println("Profile: " + numInstructions +
+			   " instructions executed");
+
+	// find the hottest instructions
+	Vector<long[]> hot = new Vector<long[]>();
+	for (int vpn=0; vpn<pcCounts.length; vpn++) {
+	    if (pcCounts[vpn] == null)
+		continue;
+
+	    for (int i=0; i<pcCounts[vpn].length; i++) {
+		if (pcCounts[vpn][i] != 0) {
+		    long pc = (long) vpn * Processor.pageSize + i*4;
+		    hot.add(new long[] { pcCounts[vpn][i], pc });
+		}
+	    }
+	}
+
+	long[][] sorted = hot.toArray(new long[hot.size()][]);
+	Arrays.sort(sorted, new Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+		    // most executed first, then by address
+		    if (a[0] != b[0])
+			return (a[0] > b[0]) ? -1 : 1;
+		    else
+			return (a[1] < b[1]) ? -1 : (a[1] > b[1]) ? 1 : 0;
+		}
+	    });
+
+	System.out.println("Hot spots:");
+	for (int i=0; i<sorted.length && i<hotSpots; i++) {
+	    int pc = (int) sorted[i][1];
+	    System.out.println("\t0x" + Lib.toHexString(pc) + "\t" +
+			       sorted[i][0] + "\t" +
+			       percent(sorted[i][0], numInstructions) + "\t" +
+			       sectionsOf(Processor.pageFromAddress(pc)));
+	}
+
+	System.out.println("Instruction mix:");
+	Integer[] opcodes = new Integer[opcodeCounts.length];
+	for (int i=0; i<opcodes.length; i++)
+	    opcodes[i] = i;
+	Arrays.sort(opcodes, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    long countA = opcodeCounts[a], countB = opcodeCounts[b];
+		    return (countA > countB) ? -1 : (countA < countB) ? 1 : 0;
+		}
+	    });
+
+	for (int i=0; i<opcodes.length && opcodeCounts[opcodes[i]] != 0; i++) {
+	    System.out.println("\t" + Processor.getOpcodeName(opcodes[i]) +
+			       "\t" + opcodeCounts[opcodes[i]] + "\t" +
+			       percent(opcodeCounts[opcodes[i]],
+				       numInstructions));
+	}
+
+	System.out.println("Pages: vpn, fetches, reads, writes");
+	for (int vpn=0; vpn<pageFetches.length; vpn++) {
+	    if (pageFetches[vpn] + pageReads[vpn] + pageWrites[vpn] == 0)
+		continue;
+
+	    System.out.println("\t" + vpn + "\t" + pageFetches[vpn] + "\t" +
+			       pageReads[vpn] + "\t" + pageWrites[vpn] + "\t" +
+			       sectionsOf(vpn));
+	}
+    }
+
+    /**
+     * Return the names of the sections containing a virtual page, or "-" if
+     * no loaded section contains it (for example, the stack).
+     */
+    private String sectionsOf(int vpn) {
+	String names = null;
+
+	for (Section section : sections) {
+	    if (vpn >= section.firstVPN &&
+		vpn < section.firstVPN + section.numPages) {
+		String name = section.program + " " + section.name;
+		names = (names == null) ? name : names + ", " + name;
+	    }
+	}
+
+	return (names == null) ? "-" : names;
+    }
+
+    private static String percent(long count, long total) {
+	if (total == 0)
+	    return "0.0%";
+
+	long tenths = count * 1000 / total;
+	return (tenths / 10) + "." + (tenths % 10) + "%";
+    }
+
+    private static int newLength(int length, int index) {
+	return Math.max(index+1, length*2);
+    }
+
+    private static class Section {
+	Section(String program, CoffSection section) {
+	    this.program = program;
+	    this.name = section.getName();
+	    this.firstVPN = section.getFirstVPN();
+	    this.numPages = section.getLength();
+	}
+
+	String program, name;
+	int firstVPN, numPages;
+    }
+
+    /** The number of hot instructions to print. */
+    private int hotSpots;
+    private long numInstructions = 0;
+
+    /** Execution counts, indexed by virtual page and word within the page. */
+    private long[][] pcCounts = new long[16][];
+    /** Execution counts, indexed by opcode number. */
+    private long[] opcodeCounts = new long[Processor.numOpcodes];
+
+    private long[] pageFetches = new long[16];
+    private long[] pageReads = new long[16];
+    private long[] pageWrites = new long[16];
+
+    private Vector<Section> sections = new Vector<Section>();
+}
@@ -6,12 +6,30 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. These are platform threads, since Nachos does not require the
+ * JDK 21 that virtual threads need.
+ *
+ * <p>
+ * At most <tt>maxThreads</tt> TCBs (or <tt>TCB.maxThreads</tt>, if set) may
+ * exist at once, and exactly one of them runs at a time.
+ *
+ * <p>
+ * <tt>TCB.handoff</tt> selects how control passes from one thread to the
+ * next: <tt>monitor</tt> (the default) waits and notifies on the monitor of
+ * each TCB, and <tt>park</tt> parks and unparks the threads with
+ * <tt>LockSupport</tt>, which avoids inflating a monitor for each switch.
+ *
+ * <p>
+ * If <tt>TCB.poolSize</tt> is set, up to that many Java threads are kept in
+ * a pool when their TCBs are destroyed, and reused to run TCBs started later,
+ * instead of creating a new thread for every TCB. How often a thread is
+ * reused is printed when Nachos exits.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -40,8 +58,38 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0);
+	if (poolSize > 0) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { printPoolStats(); }
+		});
+	}
+
+	String handoff = Config.getString("TCB.handoff", "monitor");
+	if (handoff.equals("park")) {
+	    parkHandoff = true;
+	}
+	else {
+	    Lib.assertTrue(handoff.equals("monitor"),
+			   "unknown TCB.handoff: " + handoff);
+	}
     }
-    
+
+    private static void printPoolStats() {
+	long numStarted = numThreadsCreated + numThreadsReused;
+	System.out.println("TCB pool: " + numThreadsCreated +
+			   " threads created, " + numThreadsReused +
+			   " reused (" +
+			   (numStarted == 0 ? 0 :
+			    numThreadsReused * 100 / numStarted) +
+			   "% of starts)");
+    }
+
     /**
      * Causes the thread represented by this TCB to begin execution. The
      * specified target is run in the thread.
@@ -66,7 +114,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,17 +133,33 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && !idleWorkers.isEmpty()) {
+	    /* If this is not the first TCB and a Java thread is waiting in the
+	     * pool, we hand this TCB to it instead of making a new one. As
+	     * below, the pooled thread wakes us up from threadroot() once it's
+	     * ready to be switched to.
+	     */
+	    Worker worker = idleWorkers.remove(idleWorkers.size()-1);
+	    numThreadsReused++;
+
+	    javaThread = worker.thread;
+	    currentTCB.running = false;
+
+	    worker.next = this;
+	    LockSupport.unpark(javaThread);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    final Worker worker = new Worker(this);
+	    numThreadsCreated++;
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = new Thread(worker); }
 		});
+	    worker.thread = javaThread;
 
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
@@ -115,7 +179,7 @@ public final class TCB {
 	    javaThread = Thread.currentThread();
 
 	    /* All we have to do now is invoke threadroot() directly. */
-	    threadroot();
+	    threadroot(null);
 	}
     }
 
@@ -207,7 +271,16 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
-    private void threadroot() {
+    /**
+     * Run this TCB's target in the current Java thread, which belongs to this
+     * TCB until it is destroyed.
+     *
+     * @param	worker	the pooled thread running this TCB, or <tt>null</tt> if
+     *			the thread cannot be reused.
+     * @return	<tt>true</tt> if this TCB was destroyed and its thread was
+     *		returned to the pool.
+     */
+    private boolean threadroot(Worker worker) {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
@@ -231,6 +304,8 @@ public final class TCB {
 	    running = true;
 	}
 
+	boolean pooled = false;
+	
 	try {
 	    target.run();
 
@@ -247,6 +322,15 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* The TCB that destroyed us can start another TCB as soon as we
+	     * acknowledge, so if this thread is to be reused, it must be in
+	     * the pool first.
+	     */
+	    if (worker != null && idleWorkers.size() < poolSize) {
+		idleWorkers.add(worker);
+		pooled = true;
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -258,6 +342,16 @@ public final class TCB {
 	    else
 		die();
 	}
+	finally {
+	    /* The TCB that destroyed us is waiting for acknowledgement. Send
+	     * it however we leave, so that the destroyer cannot be left
+	     * waiting even if the target caught our ThreadDeath.
+	     */
+	    if (done)
+		currentTCB.interrupt();
+	}
+
+	return pooled;
     }
 
     /**
@@ -265,29 +359,40 @@ public final class TCB {
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
-     * acknowledgement in destroy(). Otherwise, we just set the current TCB to
-     * this TCB and return.
+     * acknowledgement in destroy(), which threadroot() sends once its target
+     * exits, however it does so, after the <tt>ThreadDeath</tt> we throw.
+     * Otherwise, we just set the current TCB to this TCB and return.
      */
     private void yield() {
 	waitForInterrupt();
 	
-	if (done) {
-	    currentTCB.interrupt();
+	if (done)
 	    throw new ThreadDeath();
-	}
 
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Waits on the monitor bound to this TCB (or parks, with the park
+     * handoff) until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (parkHandoff) {
+	    // only this TCB's own Java thread ever waits on it
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitForInterruptMonitor();
+	}
+    }
+
+    private synchronized void waitForInterruptMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -296,11 +401,24 @@ public final class TCB {
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * and signalling the monitor bound to it (or unparking its thread, with
+     * the park handoff). Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (parkHandoff) {
+	    // running is volatile, so everything written before this is
+	    // visible to the woken thread once it sees running set
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    interruptMonitor();
+	}
+    }
+
+    private synchronized void interruptMonitor() {
 	running = true;
 	notify();
     }
@@ -328,10 +446,19 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless <tt>TCB.maxThreads</tt> is set.
      */
     public static final int maxThreads = 250;
 
+    /** The maximum number of TCBs, from <tt>TCB.maxThreads</tt>. */
+    private static int threadLimit = maxThreads;
+    /**
+     * <tt>true</tt> to hand control between TCBs with
+     * <tt>LockSupport.park()</tt> and <tt>unpark()</tt> instead of with
+     * monitors.
+     */
+    private static boolean parkHandoff = false;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +515,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +527,42 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The body of each Java thread that <tt>start()</tt> creates. The thread
+     * runs its TCB, and then, if there was room for it in the pool, waits
+     * there to run the next TCB to start.
+     */
+    private static class Worker implements Runnable {
+	Worker(TCB tcb) {
+	    this.tcb = tcb;
+	}
+
+	public void run() {
+	    while (tcb.threadroot(this)) {
+		while (next == null)
+		    LockSupport.park(this);
+
+		tcb = next;
+		next = null;
+	    }
+	}
+
+	/** The TCB this thread is running. */
+	private TCB tcb;
+	/** The next TCB to run, set by <tt>start()</tt> when reusing us. */
+	private volatile TCB next = null;
+	/** The Java thread. */
+	private Thread thread;
+    }
+
+    /**
+     * Java threads whose TCBs have been destroyed, waiting to be reused by
+     * <tt>start()</tt>. At most <tt>poolSize</tt> are kept.
+     */
+    private static Vector<Worker> idleWorkers = new Vector<Worker>();
+    private static int poolSize = 0;
+    private static long numThreadsCreated = 0, numThreadsReused = 0;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
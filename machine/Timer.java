@@ -13,6 +13,14 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is set, the timer does not tick on its own.
+ * Instead, it interrupts once at the time last given to
+ * <tt>setDeadline()</tt>, and the kernel programs the next deadline each
+ * time. An idle machine with nothing due then takes no timer interrupts.
+ * The timer adds no randomness to a deadline, so a kernel that wants
+ * randomized time slices uses <tt>getTimeSlice()</tt> to pick them.
  */
 public final class Timer {
     /**
@@ -30,6 +38,13 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	deadlineInterrupt = new Runnable() {
+		public void run() {
+		    deadline = Long.MAX_VALUE;
+		    timerInterrupt();
+		}
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -37,7 +52,63 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Return whether this timer is tickless, interrupting only at the
+     * deadlines given to <tt>setDeadline()</tt>.
+     *
+     * @return	<tt>true</tt> if this timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program a tickless timer to interrupt once at the specified time,
+     * replacing any deadline set before. A deadline of
+     * <tt>Long.MAX_VALUE</tt> means no interrupt at all.
+     *
+     * <p>
+     * At most one timer interrupt is ever pending: it is moved when the
+     * deadline changes, and cancelled when there is no deadline.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void setDeadline(long time) {
+	Lib.assertTrue(tickless);
+
+	if (time == deadline)
+	    return;
+
+	if (deadline != Long.MAX_VALUE) {
+	    boolean cancelled = privilege.interrupt.cancel(deadlineInterrupt);
+	    Lib.assertTrue(cancelled);
+	}
+
+	deadline = time;
+	if (time == Long.MAX_VALUE)
+	    return;
+
+	privilege.interrupt.schedule(Math.max(1, time - getTime()), "timer",
+				     deadlineInterrupt);
+    }
+
+    /**
+     * Return the length of a time slice: about 500 ticks, with the same
+     * randomness as the interval between periodic timer interrupts. A new
+     * value is chosen on every call.
+     *
+     * @return	the number of ticks the next time slice should last.
+     */
+    public int getTimeSlice() {
+	int delay = Stats.TimerTicks;
+	delay += Lib.random(delay/10) - (delay/20);
+
+	return delay;
     }
 
     /**
@@ -60,7 +131,8 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (!tickless)
+	    scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -70,18 +142,19 @@ public final class Timer {
     }
 
     private void scheduleInterrupt() {
-	int delay = Stats.TimerTicks;
-	delay += Lib.random(delay/10) - (delay/20);
-
-	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+	privilege.interrupt.schedule(getTimeSlice(), "timer", timerInterrupt);
     }
 
     private void scheduleAutoGraderInterrupt() {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean tickless;
+    private long deadline = Long.MAX_VALUE;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
+    private Runnable deadlineInterrupt;
     private Runnable autoGraderInterrupt;
 
     private Privilege privilege;
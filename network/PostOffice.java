@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.ArrayList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,21 +16,39 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * A <tt>SynchList</tt> has no bound, so a fast sender can make a mailbox grow
+ * without limit. If <tt>PostOffice.mailboxCapacity</tt> is set, each mailbox
+ * is a <tt>BoundedBuffer</tt> of that many messages instead, and mail that
+ * arrives for a full mailbox is dropped, as the network may drop it anyway.
+ * The postal worker never waits for room, so one full mailbox does not hold
+ * up mail for the others.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using an array of <tt>SynchList</tt>s, or
+     * of <tt>BoundedBuffer</tt>s if <tt>PostOffice.mailboxCapacity</tt> is
+     * set. Register the interrupt handlers with the network hardware and
+     * start the "postal worker" thread.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
-	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 0);
+	if (capacity > 0) {
+	    mailboxes =
+		new ArrayList<BoundedBuffer<MailMessage>>(MailMessage.portLimit);
+	    for (int i=0; i<MailMessage.portLimit; i++)
+		mailboxes.add(new BoundedBuffer<MailMessage>(capacity));
+	}
+	else {
+	    queues = new SynchList[MailMessage.portLimit];
+	    for (int i=0; i<queues.length; i++)
+		queues[i] = new SynchList();
+	}
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -54,11 +74,15 @@ public class PostOffice {
      * @return	the message received.
      */
     public MailMessage receive(int port) {
-	Lib.assertTrue(port >= 0 && port < queues.length);
+	Lib.assertTrue(port >= 0 && port < MailMessage.portLimit);
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail;
+	if (mailboxes != null)
+	    mail = mailboxes.get(port).take();
+	else
+	    mail = (MailMessage) queues[port].removeFirst();
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -89,7 +113,11 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (mailboxes == null)
+		queues[mail.dstPort].add(mail);
+	    else if (!mailboxes.get(mail.dstPort).offer(mail))
+		Lib.debug(dbgNet, "mailbox full, dropped mail to port "
+			  + mail.dstPort);
 	}
     }
 
@@ -126,6 +154,7 @@ public class PostOffice {
     }
 
     private SynchList[] queues;
+    private ArrayList<BoundedBuffer<MailMessage>> mailboxes;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
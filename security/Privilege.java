@@ -149,6 +149,17 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Cancel a pending interrupt. If more than one interrupt with the
+	 * specified handler is pending, the one that would occur first is
+	 * cancelled.
+	 *
+	 * @param	handler	the handler the interrupt was scheduled with.
+	 * @return	<tt>true</tt> if an interrupt was cancelled, or
+	 *		<tt>false</tt> if none with that handler was pending.
+	 */
+	public boolean cancel(Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +169,25 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by <i>count</i> user instructions at
+	 * once. Interrupt handlers are only checked for after the last one,
+	 * so <i>count</i> should not exceed <tt>userTicksUntilDue()</tt>.
+	 *
+	 * @param	count	the number of user instructions executed.
+	 */
+	public void tickUser(int count);
+
+	/**
+	 * Return the number of user instructions that can be executed before
+	 * the next pending interrupt becomes due.
+	 *
+	 * @return	the number of user instructions until the next interrupt,
+	 *		at least 1, or <tt>Integer.MAX_VALUE</tt> if nothing is
+	 *		pending.
+	 */
+	public int userTicksUntilDue();
     }
 
     /**
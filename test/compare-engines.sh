@@ -0,0 +1,51 @@
+#!/bin/sh
+
+# Differential test for the processor's execution engines.
+#
+# Runs each COFF program once under every Processor.engine and checks that
+# all runs print the same output, the same tick counts, and the same final
+# register/memory digest. Run it from a project directory whose nachos.conf
+# loads a user kernel (e.g. proj2), with the Nachos classes on the
+# classpath. Programs are named as for -x, and default to every .coff file
+# in ../test:
+#
+#	cd proj2 && sh ../test/compare-engines.sh halt.coff matmult.coff
+#
+# Programs that read from the console are given an empty input.
+
+engines="instructions blocks"
+
+if [ $# -eq 0 ]; then
+    set -- `cd ../test && ls *.coff`
+fi
+
+tmp=`mktemp -d` || exit 2
+trap 'rm -rf $tmp' 0
+
+status=0
+
+for program in "$@"; do
+    for engine in $engines; do
+	conf=$tmp/$engine.conf
+	grep -v '^Processor\.\(engine\|printDigest\)' \
+	    nachos.conf > $conf
+	echo "Processor.engine = $engine" >> $conf
+	echo "Processor.printDigest = true" >> $conf
+
+	java nachos.machine.Machine -[] $conf -x $program < /dev/null \
+	    > $tmp/$engine.out 2>&1
+    done
+
+    result=ok
+    for engine in $engines; do
+	if ! cmp -s $tmp/instructions.out $tmp/$engine.out; then
+	    result="differs under $engine engine"
+	    diff $tmp/instructions.out $tmp/$engine.out | head -20
+	    status=1
+	fi
+    done
+
+    echo "$program: $result"
+done
+
+exit $status
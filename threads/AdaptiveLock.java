@@ -0,0 +1,182 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Lock</tt> that, when it finds the lock busy, may spin for a while
+ * before going to sleep. A contended <tt>Lock.acquire()</tt> always sleeps,
+ * which costs a context switch to leave and another to come back, even if
+ * the holder was about to release the lock.
+ *
+ * <p>
+ * An adaptive lock keeps a moving average of how long the lock is held. If
+ * that is no more than <tt>AdaptiveLock.spinTicks</tt> ticks (200 by
+ * default), a thread that finds the lock busy spins: it yields, so that the
+ * holder can run, and tries again, up to <tt>AdaptiveLock.maxSpins</tt> times
+ * (8 by default) or until <tt>spinTicks</tt> ticks have passed. Only then
+ * does it sleep as <tt>Lock.acquire()</tt> does. If the lock is usually held
+ * for longer, threads sleep at once.
+ *
+ * <p>
+ * There is only one CPU, so a spinning thread can only see the lock freed if
+ * the holder runs while it yields. Spinning pays off when the holder is ready
+ * to run, for instance because a timer interrupt preempted it, and not when
+ * it is blocked.
+ */
+public class AdaptiveLock extends Lock {
+    /**
+     * Allocate a new adaptive lock, with the spin limits given by
+     * <tt>AdaptiveLock.maxSpins</tt> and <tt>AdaptiveLock.spinTicks</tt>.
+     * The lock will initially be <i>free</i>.
+     */
+    public AdaptiveLock() {
+	this(Config.getInteger("AdaptiveLock.maxSpins", 8),
+	     Config.getInteger("AdaptiveLock.spinTicks", 200));
+    }
+
+    /**
+     * Allocate a new adaptive lock. The lock will initially be <i>free</i>.
+     *
+     * @param	maxSpins	the most times to yield before sleeping.
+     * @param	spinTicks	the longest average hold time, and the longest
+     *				spin, in ticks. 0 never spins.
+     */
+    public AdaptiveLock(int maxSpins, int spinTicks) {
+	Lib.assertTrue(maxSpins >= 0 && spinTicks >= 0);
+
+	this.maxSpins = maxSpins;
+	this.spinTicks = spinTicks;
+    }
+
+    /**
+     * Atomically acquire this lock, spinning first if the lock is busy and
+     * usually held only briefly. The current thread must not already hold
+     * this lock.
+     */
+    public void acquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	numAcquires++;
+
+	boolean free = isFree();
+	if (free) {
+	    numUncontended++;
+	}
+	else if (numSleeping == 0 && spinTicks > 0 &&
+		 avgHoldTicks <= spinTicks && spin()) {
+	    numSpinSuccesses++;
+	    free = true;
+	}
+	else {
+	    numBlocked++;
+	}
+
+	if (free) {
+	    // nothing runs between the last isFree() and here, so this does
+	    // not sleep
+	    super.acquire();
+	}
+	else {
+	    numSleeping++;
+	    super.acquire();
+	    numSleeping--;
+	}
+
+	acquiredAt = Machine.timer().getTime();
+    }
+
+    /**
+     * Atomically release this lock, allowing other threads to acquire it.
+     */
+    public void release() {
+	long now = Machine.timer().getTime();
+	avgHoldTicks = (avgHoldTicks*7 + (now - acquiredAt)) / 8;
+
+	super.release();
+    }
+
+    /**
+     * Queue a thread woken from a condition variable for this lock. It is
+     * counted as an acquire that slept, and spinners see it waiting.
+     */
+    void waitForAccess(KThread thread) {
+	super.waitForAccess(thread);
+
+	numAcquires++;
+	numBlocked++;
+	numSleeping++;
+    }
+
+    void acquiredFromQueue() {
+	super.acquiredFromQueue();
+
+	numSleeping--;
+	acquiredAt = Machine.timer().getTime();
+    }
+
+    private boolean spin() {
+	numSpins++;
+
+	long deadline = Machine.timer().getTime() + spinTicks;
+	for (int i=0; i<maxSpins && Machine.timer().getTime() < deadline; i++) {
+	    KThread.yield();
+	    if (isFree())
+		return true;
+	    // release() hands the lock straight to a sleeper, so once one
+	    // is waiting, spinning cannot win
+	    if (numSleeping > 0)
+		break;
+	}
+
+	return false;
+    }
+
+    /**
+     * Return the fraction of spins that ended with the lock, rather than
+     * sleeping, or 0 if no thread has spun yet.
+     *
+     * @return	the spin success rate, from 0 to 1.
+     */
+    public double getSpinSuccessRate() {
+	return (numSpins == 0) ? 0 : (double) numSpinSuccesses / numSpins;
+    }
+
+    /**
+     * Return the moving average of how long this lock is held, in ticks.
+     *
+     * @return	the average hold time.
+     */
+    public long getAverageHoldTicks() {
+	return avgHoldTicks;
+    }
+
+    /**
+     * Print how this lock has been acquired so far.
+     */
+    public void printStats() {
+	System.out.println("AdaptiveLock: " + numAcquires + " acquires, " +
+			   numUncontended + " uncontended, " + numSpins +
+			   " spun (" + numSpinSuccesses + " got the lock, " +
+			   Math.round(getSpinSuccessRate()*100) +
+			   "% success), " + numBlocked + " slept; " +
+			   avgHoldTicks + " ticks average hold");
+    }
+
+    private int maxSpins;
+    private int spinTicks;
+
+    /** When the current holder got the lock. */
+    private long acquiredAt = 0;
+    private long avgHoldTicks = 0;
+
+    private long numAcquires = 0;
+    private long numUncontended = 0;
+    private long numSpins = 0;
+    private long numSpinSuccesses = 0;
+    private long numBlocked = 0;
+    /**
+     * Threads waiting to be handed the lock, asleep in <tt>acquire()</tt> or
+     * moved onto the lock by a condition variable.
+     */
+    private int numSleeping = 0;
+}
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-//----------------------------
-import java.util.Vector;
-//----------------------------
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
@@ -20,12 +16,17 @@ public class Alarm {
      * alarm.
      */
 
-    private Vector WaitQ = null;            // for waiting Queue for asserted Thread
-                                            // we gonna store SelfWaitThread in this vector...
+    private WaitQueue WaitQ = null;         // for waiting Queue for asserted Thread
+                                            // we gonna store SelfWaitThread in this heap...
+    private boolean tickless = false;       // the timer only interrupts when programTimer() says so
+    private boolean cpuIdle = false;        // the idle thread is running, so no time slice is needed
+    private long sliceEnd = 0;              // tickless: when the current time slice runs out
 
     public class SelfWaitThread {                 // thread which itself calls 'waitUntil(long)'
         private KThread waitThread = null;        // thread in waiting State
         private long waitTime = 0;                // waiting time
+        private long order = 0;                   // arrival order, to break ties between equal waiting times
+        private Runnable handler = null;          // run instead of waking waitThread, if set (see runAfter)
 
         public SelfWaitThread(KThread thread, long time) {
                waitTime = time;
@@ -36,12 +37,139 @@ public class Alarm {
         public long getSelfWaitTime() {return waitTime;}         // return set waiting time
    
     } 
+
+    /**
+     * The sleeping threads, kept in a binary min-heap ordered by waiting
+     * time, then by arrival. <tt>waitUntil()</tt> is O(log n), and a timer
+     * interrupt only looks at the threads that are due, instead of scanning
+     * and shifting a vector of every sleeping thread.
+     */
+    private class WaitQueue {
+        public void add(KThread thread, long time) {
+            add(new SelfWaitThread(thread, time));
+        }
+
+        public void add(SelfWaitThread waiter) {
+            waiter.order = numAdded++;
+
+            if (size == heap.length) {
+                SelfWaitThread[] newHeap = new SelfWaitThread[size*2];
+                System.arraycopy(heap, 0, newHeap, 0, size);
+                heap = newHeap;
+            }
+
+            int i = size++;                            // sift up from the new leaf
+            while (i > 0 && before(waiter, heap[(i-1)/2])) {
+                heap[i] = heap[(i-1)/2];
+                i = (i-1)/2;
+            }
+            heap[i] = waiter;
+        }
+
+        /**
+         * Remove and return the earliest sleeper whose waiting time is before
+         * <i>now</i>, or return <tt>null</tt> if there is none.
+         */
+        public SelfWaitThread removeDue(long now) {
+            if (size == 0 || heap[0].getSelfWaitTime() >= now)
+                return null;
+
+            SelfWaitThread first = heap[0];
+
+            SelfWaitThread last = heap[--size];        // sift the last leaf down from the root
+            heap[size] = null;
+            int i = 0;
+            while (2*i+1 < size) {
+                int child = 2*i+1;
+                if (child+1 < size && before(heap[child+1], heap[child]))
+                    child++;
+                if (!before(heap[child], last))
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            if (size > 0)
+                heap[i] = last;
+
+            return first;
+        }
+
+        public int size() {return size;}
+
+        /**
+         * Return the earliest waiting time, or <tt>Long.MAX_VALUE</tt> if no
+         * thread is waiting.
+         */
+        public long firstTime() {
+            return (size == 0) ? Long.MAX_VALUE : heap[0].getSelfWaitTime();
+        }
+
+        private boolean before(SelfWaitThread a, SelfWaitThread b) {
+            if (a.waitTime != b.waitTime)
+                return a.waitTime < b.waitTime;
+            return a.order < b.order;
+        }
+
+        private SelfWaitThread[] heap = new SelfWaitThread[16];
+        private int size = 0;
+        private long numAdded = 0;
+    }
     
     public Alarm() {
-        WaitQ = new Vector();
+        WaitQ = new WaitQueue();
         Machine.timer().setInterruptHandler(new Runnable() {
                 public void run() { timerInterrupt(); }
             });
+        tickless = Machine.timer().isTickless();
+        startSlice();
+        programTimer();
+    }
+
+    /**
+     * Tell the alarm whether the CPU is going idle (about to run the idle
+     * thread) or busy again. Called by <tt>KThread</tt> on each switch into or
+     * out of the idle thread. An idle CPU needs no time slice, so a tickless
+     * timer is then programmed for the next sleeper only.
+     *
+     * @param   idle    <tt>true</tt> if the CPU is going idle.
+     */
+    public void setIdle(boolean idle) {
+        if (!tickless)
+            return;
+
+        cpuIdle = idle;
+        if (!idle)
+            startSlice();                             // a thread starts running on an idle CPU
+        programTimer();
+    }
+
+    /**
+     * Start a new time slice for a tickless timer. Its length is randomized
+     * like the interval between periodic timer interrupts, so that tickless
+     * mode still varies where threads get preempted.
+     */
+    private void startSlice() {
+        if (tickless)
+            sliceEnd = Machine.timer().getTime() + Machine.timer().getTimeSlice();
+    }
+
+    /**
+     * Program a tickless timer for the earliest of the next sleeper's
+     * wakeup and, unless the CPU is idle, the end of the time slice.
+     */
+    private void programTimer() {
+        if (!tickless)
+            return;
+
+        long deadline = Long.MAX_VALUE;
+        if (!cpuIdle)
+            deadline = sliceEnd;
+
+        long firstTime = WaitQ.firstTime();
+        if (firstTime != Long.MAX_VALUE)
+            deadline = Math.min(deadline, firstTime + 1);  // woken once its waiting time has passed
+
+        Machine.timer().setDeadline(deadline);
     }
 
     /**
@@ -55,19 +183,16 @@ public class Alarm {
         long now = Machine.timer().getTime();    // get Current Time
         boolean intStatus = Machine.interrupt().disable(); // need to disable Interrupt
            
-        int i=0;
-
-        while(WaitQ.size() > i){           // we gonna check all thread in waiting set!!
-            SelfWaitThread tmp;
-            tmp = (SelfWaitThread)WaitQ.elementAt(i);
-            
-            if(tmp.getSelfWaitTime()<now){ // if waiting time has passed
-               tmp.getSelfWaitThread().ready(); // put the thread into ready queue
-               WaitQ.removeElementAt(i);        // remove that thread from waiting set
-               if(i != 0)i--;
-            }
-            i++;                                // check next thread in ready queue
+        SelfWaitThread due;
+
+        while((due = WaitQ.removeDue(now)) != null){  // only threads whose waiting time has passed
+            if (due.handler != null)
+                due.handler.run();                    // a timeout: the handler decides whom to wake
+            else
+                due.getSelfWaitThread().ready();      // put the thread into ready queue
         }
+        startSlice();                                 // tickless: the yield below ends this slice
+        programTimer();                               // tickless: set up the next interrupt
         Machine.interrupt().restore(intStatus); // enable interrupt again!!
         KThread.currentThread().yield();
     }
@@ -91,12 +216,36 @@ public class Alarm {
         long wakeTime = Machine.timer().getTime() + x;     // get due of waiting
         boolean intStatus = Machine.interrupt().disable(); // need to disable interrupt
        
-        SelfWaitThread tmp = new SelfWaitThread(KThread.currentThread(),wakeTime);
-        WaitQ.add((SelfWaitThread)tmp);  // put this thread(called waitUntil) to waiting set
-        tmp.getSelfWaitThread().sleep(); // put this thread into waiting set until wakeTime
+        WaitQ.add(KThread.currentThread(),wakeTime);  // put this thread(called waitUntil) to waiting set
+        programTimer();                  // tickless: this thread may be the next one due
+        KThread.sleep();                 // put this thread into waiting set until wakeTime
         Machine.interrupt().restore(intStatus);  // enable interrupt again!!
         
     }
+
+    /**
+     * Run <i>handler</i> from the timer interrupt handler, with interrupts
+     * disabled, at the first timer interrupt where at least <i>x</i> ticks
+     * have passed. Unlike <tt>waitUntil()</tt>, this does not put the current
+     * thread to sleep: the handler decides which thread, if any, to wake.
+     * <tt>Condition2.sleep(long)</tt> uses it for sleepers that may be woken
+     * by <tt>wake()</tt> before their time is up.
+     *
+     * @param   x       the minimum number of clock ticks to wait.
+     * @param   handler the handler to run.
+     */
+    void runAfter(long x, Runnable handler) {
+        long wakeTime = Machine.timer().getTime() + x;
+        boolean intStatus = Machine.interrupt().disable();
+
+        SelfWaitThread waiter = new SelfWaitThread(KThread.currentThread(), wakeTime);
+        waiter.handler = handler;
+        WaitQ.add(waiter);
+        programTimer();
+
+        Machine.interrupt().restore(intStatus);
+    }
+
    public static void alarmTest1() {                 // testing alarm
        int durations[] = {1000,10*1000, 100*1000};   // testing duration
        long t0,t1;
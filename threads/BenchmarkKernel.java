@@ -0,0 +1,812 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that runs one benchmark of the thread system and halts. The
+ * benchmark and its arguments are given by <tt>BenchmarkKernel.benchmark</tt>,
+ * as a name followed by up to three integers, separated by commas, for
+ * instance:
+ *
+ * <p><blockquote><pre>
+ * Kernel.kernel = nachos.threads.BenchmarkKernel
+ * BenchmarkKernel.benchmark = interrupt,1000000
+ * </pre></blockquote>
+ *
+ * <p>
+ * A missing argument takes the default given below. The benchmarks are:
+ *
+ * <ul>
+ * <li><tt>interrupt</tt> <i>ticks</i> (1000000): the cost of a kernel tick.
+ * <li><tt>kthread</tt> <i>threads</i> (2) <i>yields</i> (10000): the cost of
+ * a context switch between threads that only yield.
+ * <li><tt>semaphore</tt> <i>rounds</i> (10000): a ping-pong between two
+ * threads.
+ * <li><tt>condition2</tt> <i>waiters</i> (32) <i>rounds</i> (1000)
+ * <i>batch</i> (4): batches announced with <tt>wakeAll()</tt>, with and
+ * without wait morphing, and with <tt>wake(n)</tt>.
+ * <li><tt>boundedbuffer</tt> <i>producers</i> (4) <i>items</i> (10000)
+ * <i>capacity</i> (64): <tt>take()</tt> against <tt>drainTo()</tt>.
+ * <li><tt>communicator</tt> <i>words</i> (10000) <i>batch</i> (1024): single
+ * words against batches.
+ * <li><tt>alarm</tt> <i>sleepers</i> (100) <i>ticks</i> (1000000)
+ * <i>maxWait</i> (100000): threads that sleep for random times.
+ * <li><tt>adaptivelock</tt> <i>threads</i> (4) <i>rounds</i> (1000):
+ * <tt>Lock</tt> against <tt>AdaptiveLock</tt>.
+ * <li><tt>readwritelock</tt> <i>threads</i> (8) <i>rounds</i> (100):
+ * <tt>Lock</tt> against <tt>ReadWriteLock</tt>.
+ * <li><tt>donation</tt> <i>depth</i> (100) <i>width</i> (100) <i>rounds</i>
+ * (100000): priority changes that donation carries down a chain of locks,
+ * and into a lock many threads wait for.
+ * <li><tt>lottery</tt> <i>threads</i> (100) <i>yields</i> (100000): the share
+ * of the CPU threads get for 1 to 4 tickets.
+ * <li><tt>forkjoin</tt> <i>depth</i> (6) <i>yields</i> (10): a binary tree of
+ * threads that fork and join their children.
+ * </ul>
+ *
+ * <p>
+ * The benchmarks only use the public interfaces of the classes they measure,
+ * under whichever scheduler <tt>ThreadedKernel.scheduler</tt> names.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Do not run the self tests, so that their output and the time they take
+     * are not mixed with the benchmark's.
+     */
+    public void selfTest() {
+    }
+
+    /**
+     * Run the benchmark named by <tt>BenchmarkKernel.benchmark</tt>.
+     */
+    public void run() {
+	String benchmark = Config.getString("BenchmarkKernel.benchmark");
+	Lib.assertTrue(benchmark != null, "BenchmarkKernel.benchmark not set");
+
+	StringTokenizer st = new StringTokenizer(benchmark, ",");
+	Lib.assertTrue(st.hasMoreTokens(), "BenchmarkKernel.benchmark empty");
+	String name = st.nextToken();
+	args = new int[st.countTokens()];
+	for (int i=0; i<args.length; i++) {
+	    String word = st.nextToken();
+	    try {
+		args[i] = Integer.parseInt(word);
+	    }
+	    catch (NumberFormatException e) {
+		Lib.assertNotReached("bad benchmark argument: " + word);
+	    }
+	}
+
+	if (name.equals("interrupt"))
+	    interrupt(arg(0, 1000000));
+	else if (name.equals("kthread"))
+	    kthread(arg(0, 2), arg(1, 10000));
+	else if (name.equals("semaphore"))
+	    semaphore(arg(0, 10000));
+	else if (name.equals("condition2"))
+	    condition2(arg(0, 32), arg(1, 1000), arg(2, 4));
+	else if (name.equals("boundedbuffer"))
+	    boundedBuffer(arg(0, 4), arg(1, 10000), arg(2, 64));
+	else if (name.equals("communicator"))
+	    communicator(arg(0, 10000), arg(1, 1024));
+	else if (name.equals("alarm"))
+	    alarm(arg(0, 100), arg(1, 1000000), arg(2, 100000));
+	else if (name.equals("adaptivelock"))
+	    adaptiveLock(arg(0, 4), arg(1, 1000));
+	else if (name.equals("readwritelock"))
+	    readWriteLock(arg(0, 8), arg(1, 100));
+	else if (name.equals("donation"))
+	    donation(arg(0, 100), arg(1, 100), arg(2, 100000));
+	else if (name.equals("lottery"))
+	    lottery(arg(0, 100), arg(1, 100000));
+	else if (name.equals("forkjoin"))
+	    forkJoin(arg(0, 6), arg(1, 10));
+	else
+	    Lib.assertNotReached("unknown benchmark: " + name);
+    }
+
+    private int arg(int i, int defaultValue) {
+	return (i < args.length) ? args[i] : defaultValue;
+    }
+
+    /**
+     * Measure the cost of a kernel tick, by disabling and re-enabling
+     * interrupts repeatedly. Whatever interrupts are pending (such as the
+     * timer's) are handled as usual, so simulated time advances by one
+     * kernel tick per iteration.
+     */
+    private static void interrupt(int numTicks) {
+	Lib.assertTrue(numTicks > 0);
+
+	// warm up first
+	for (int i=0; i<numTicks/10; i++) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+
+	long start = System.nanoTime();
+	for (int i=0; i<numTicks; i++) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("Interrupt: " + numTicks + " ticks in " +
+			   elapsed/1000000 + " ms (" +
+			   elapsed/numTicks + " ns/tick)");
+    }
+
+    /**
+     * Measure the cost of a context switch. The forked threads do nothing
+     * but yield to each other, so almost every yield is a switch to another
+     * thread. The time includes forking and joining the threads.
+     */
+    private static void kthread(int numThreads, final int numYields) {
+	Lib.assertTrue(numThreads > 0 && numYields > 0);
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numYields; j++)
+			    KThread.yield();
+		    }
+		}).setName("benchmark thread " + i);
+	}
+
+	long start = System.nanoTime();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+	long elapsed = System.nanoTime() - start;
+
+	long numSwitches = (long) numThreads * numYields;
+	System.out.println("KThread: " + numThreads + " threads, " +
+			   numSwitches + " context switches in " +
+			   elapsed/1000000 + " ms (" +
+			   elapsed/numSwitches + " ns/switch)");
+    }
+
+    /**
+     * Measure how many context switches per second a ping-pong between two
+     * threads achieves. Each round is two switches.
+     */
+    private static void semaphore(final int rounds) {
+	Lib.assertTrue(rounds > 0);
+
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+
+	KThread thread = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<rounds; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    }).setName("ping");
+
+	long start = System.nanoTime();
+	thread.fork();
+	for (int i=0; i<rounds; i++) {
+	    ping.V();
+	    pong.P();
+	}
+	long elapsed = System.nanoTime() - start;
+
+	long numSwitches = 2L * rounds;
+	System.out.println("Semaphore: " + numSwitches +
+			   " context switches in " + elapsed/1000000 +
+			   " ms (" + numSwitches * 1000000000L / elapsed +
+			   " switches/sec)");
+    }
+
+    /**
+     * Count the context switches while <i>numWaiters</i> threads take
+     * <i>rounds</i> batches of <i>batchSize</i> tokens, the producer
+     * announcing each batch with <tt>wakeAll()</tt>, first without and then
+     * with wait morphing, and finally with <tt>wake(batchSize)</tt>.
+     */
+    private static void condition2(int numWaiters, int rounds,
+				   int batchSize) {
+	Lib.assertTrue(numWaiters > 0 && rounds > 0 && batchSize > 0);
+
+	condition2(numWaiters, rounds, batchSize, false, false);
+	condition2(numWaiters, rounds, batchSize, true, false);
+	condition2(numWaiters, rounds, batchSize, true, true);
+    }
+
+    private static void condition2(int numWaiters, int rounds, int batchSize,
+				   boolean waitMorphing, boolean wakeN) {
+	final Lock lock = new Lock();
+	final Condition2 available = new Condition2(lock, waitMorphing);
+	final Condition2 drained = new Condition2(lock, waitMorphing);
+	final int[] tokens = new int[1];
+	final boolean[] done = new boolean[1];
+
+	KThread[] waiters = new KThread[numWaiters];
+	for (int i=0; i<numWaiters; i++) {
+	    waiters[i] = new KThread(new Runnable() {
+		    public void run() {
+			lock.acquire();
+			while (true) {
+			    while (tokens[0] == 0 && !done[0])
+				available.sleep();
+			    if (tokens[0] == 0)
+				break;
+			    if (--tokens[0] == 0)
+				drained.wake();
+			}
+			lock.release();
+		    }
+		}).setName("waiter " + i);
+	    waiters[i].fork();
+	}
+
+	long startSwitches = KThread.getNumSwitches();
+	long startTicks = Machine.timer().getTime();
+
+	lock.acquire();
+	for (int i=0; i<rounds; i++) {
+	    tokens[0] = batchSize;
+	    if (wakeN)
+		available.wake(batchSize);
+	    else
+		available.wakeAll();
+	    while (tokens[0] > 0)
+		drained.sleep();
+	}
+	done[0] = true;
+	available.wakeAll();
+	lock.release();
+
+	for (int i=0; i<numWaiters; i++)
+	    waiters[i].join();
+
+	long numTokens = (long) rounds * batchSize;
+	long switches = KThread.getNumSwitches() - startSwitches;
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	System.out.println("Condition2: " + numWaiters + " waiters, " +
+			   numTokens + " tokens, " +
+			   (wakeN ? "wake(" + batchSize + ")" : "wakeAll()") +
+			   (waitMorphing ? " with" : " without") +
+			   " wait morphing: " + switches +
+			   " context switches (" + switches/numTokens +
+			   " per token), " + ticks + " ticks");
+    }
+
+    /**
+     * Have <i>numProducers</i> threads put <i>numItems</i> items each into
+     * a buffer of <i>capacity</i> items, while the current thread takes them
+     * out, first one at a time with <tt>take()</tt>, and then in batches
+     * with <tt>drainTo()</tt>.
+     */
+    private static void boundedBuffer(int numProducers, int numItems,
+				      int capacity) {
+	Lib.assertTrue(numProducers > 0 && numItems > 0 && capacity > 0);
+
+	boundedBuffer(numProducers, numItems, capacity, false);
+	boundedBuffer(numProducers, numItems, capacity, true);
+    }
+
+    private static void boundedBuffer(int numProducers, final int numItems,
+				      int capacity, boolean batch) {
+	final BoundedBuffer<Integer> buffer =
+	    new BoundedBuffer<Integer>(capacity);
+
+	KThread[] producers = new KThread[numProducers];
+	for (int i=0; i<numProducers; i++) {
+	    producers[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<numItems; j++)
+			    buffer.put(Integer.valueOf(j));
+		    }
+		}).setName("producer " + i);
+	}
+
+	long startSwitches = KThread.getNumSwitches();
+	long startTicks = Machine.timer().getTime();
+
+	for (int i=0; i<numProducers; i++)
+	    producers[i].fork();
+
+	long total = (long) numProducers * numItems;
+	ArrayList<Integer> drained = new ArrayList<Integer>(capacity);
+	for (long received=0; received<total; ) {
+	    drained.clear();
+	    drained.add(buffer.take());
+	    if (batch)
+		buffer.drainTo(drained);
+	    received += drained.size();
+	}
+
+	for (int i=0; i<numProducers; i++)
+	    producers[i].join();
+
+	Lib.assertTrue(buffer.size() == 0);
+
+	long switches = KThread.getNumSwitches() - startSwitches;
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	System.out.println("BoundedBuffer: " + numProducers + " producers, " +
+			   total + " items, capacity " + capacity + ", " +
+			   (batch ? "drainTo()" : "take()") + ": " + switches +
+			   " context switches, " + ticks + " ticks");
+    }
+
+    /**
+     * Measure how fast a forked speaker can send words to the current thread,
+     * one at a time and then in batches of <i>batchSize</i>.
+     */
+    private static void communicator(final int numWords,
+				     final int batchSize) {
+	Lib.assertTrue(numWords > 0 && batchSize > 0);
+
+	final Communicator communicator = new Communicator();
+
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<numWords; i++)
+			communicator.speak(i);
+		}
+	    }).setName("speaker");
+
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	speaker.fork();
+	for (int i=0; i<numWords; i++)
+	    Lib.assertTrue(communicator.listen() == i);
+	printCommunicator("single words", numWords, startTicks, start);
+
+	speaker = new KThread(new Runnable() {
+		public void run() {
+		    int[] batch = new int[batchSize];
+		    for (int sent=0; sent<numWords; ) {
+			int len = Math.min(batchSize, numWords - sent);
+			for (int i=0; i<len; i++)
+			    batch[i] = sent + i;
+			communicator.speak(batch, 0, len);
+			sent += len;
+		    }
+		}
+	    }).setName("batch speaker");
+
+	startTicks = Machine.timer().getTime();
+	start = System.nanoTime();
+	speaker.fork();
+	int[] buf = new int[batchSize];
+	for (int received=0; received<numWords; ) {
+	    int len = communicator.listen(buf);
+	    for (int i=0; i<len; i++)
+		Lib.assertTrue(buf[i] == received + i);
+	    received += len;
+	}
+	printCommunicator("batches of " + batchSize, numWords, startTicks,
+			  start);
+    }
+
+    private static void printCommunicator(String what, long numWords,
+					  long startTicks, long start) {
+	long elapsed = System.nanoTime() - start;
+	long ticks = Math.max(1, Machine.timer().getTime() - startTicks);
+
+	System.out.println("Communicator: " + numWords + " words in " + what +
+			   ", " + ticks + " ticks, " + elapsed/1000000 +
+			   " ms (" + numWords/ticks + "." +
+			   String.valueOf(1000 + numWords*1000/ticks % 1000).substring(1) +
+			   " words/tick, " +
+			   numWords * 1000000000L / elapsed + " words/sec)");
+    }
+
+    /**
+     * Have <i>numSleepers</i> threads sleep on the alarm, each time for a
+     * random number of ticks up to <i>maxWait</i>, until <i>duration</i>
+     * ticks have passed, and print the real time per wakeup.
+     */
+    private static void alarm(int numSleepers, final long duration,
+			      final int maxWait) {
+	Lib.assertTrue(numSleepers > 0 && duration > 0 && maxWait > 0);
+
+	final long end = Machine.timer().getTime() + duration;
+	final long[] numWakeups = new long[1];
+
+	KThread[] sleepers = new KThread[numSleepers];
+	for (int i=0; i<numSleepers; i++) {
+	    sleepers[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end) {
+			    ThreadedKernel.alarm.waitUntil(1 + Lib.random(maxWait));
+			    numWakeups[0]++;
+			}
+		    }
+		}).setName("sleeper " + i);
+	}
+
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<numSleepers; i++)
+	    sleepers[i].fork();
+	for (int i=0; i<numSleepers; i++)
+	    sleepers[i].join();
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("Alarm: " + numSleepers + " sleepers, " +
+			   numWakeups[0] + " wakeups in " +
+			   (Machine.timer().getTime() - startTicks) +
+			   " ticks, " + elapsed/1000000 + " ms (" +
+			   elapsed/Math.max(1, numWakeups[0]) +
+			   " ns/wakeup)");
+    }
+
+    /**
+     * Have <i>numThreads</i> threads take a lock <i>rounds</i> times each,
+     * holding it across one <tt>yield()</tt> every fourth time, as if
+     * preempted in a short critical section, and then across a 1000-tick
+     * alarm wait, as if blocked in a long one. Runs each under a
+     * <tt>Lock</tt> and an <tt>AdaptiveLock</tt>.
+     */
+    private static void adaptiveLock(int numThreads, int rounds) {
+	Lib.assertTrue(numThreads > 0 && rounds > 0);
+
+	for (int holdTicks=0; holdTicks<=1000; holdTicks+=1000) {
+	    adaptiveLock(new Lock(), numThreads, rounds, holdTicks);
+	    adaptiveLock(new AdaptiveLock(), numThreads, rounds, holdTicks);
+	}
+    }
+
+    private static void adaptiveLock(final Lock lock, int numThreads,
+				     final int rounds, final int holdTicks) {
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    lock.acquire();
+			    if (holdTicks > 0)
+				ThreadedKernel.alarm.waitUntil(holdTicks);
+			    else if (j % 4 == 0)
+				KThread.yield();
+			    lock.release();
+			}
+		    }
+		}).setName("contender " + i);
+	}
+
+	long startSwitches = KThread.getNumSwitches();
+	long startTicks = Machine.timer().getTime();
+
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+
+	System.out.println("AdaptiveLock: " + numThreads + " threads x " +
+			   rounds + " rounds, " +
+			   (holdTicks == 0 ? "short" : "long") +
+			   " critical section, under " +
+			   lock.getClass().getName() + ": " +
+			   (KThread.getNumSwitches() - startSwitches) +
+			   " context switches, " +
+			   (Machine.timer().getTime() - startTicks) + " ticks");
+
+	if (lock instanceof AdaptiveLock)
+	    ((AdaptiveLock) lock).printStats();
+    }
+
+    /**
+     * Measure readers that hold the lock while they wait on the alarm, as
+     * they would for a disk, with a writer every sixteenth round. Runs first
+     * under a <tt>Lock</tt> and then under a fair and a writer-preferring
+     * <tt>ReadWriteLock</tt>.
+     */
+    private static void readWriteLock(int numThreads, int rounds) {
+	Lib.assertTrue(numThreads > 0 && rounds > 0);
+
+	readWriteLock(null, "Lock", numThreads, rounds);
+	readWriteLock(new ReadWriteLock(true), "fair ReadWriteLock",
+		      numThreads, rounds);
+	readWriteLock(new ReadWriteLock(false),
+		      "writer-preferring ReadWriteLock", numThreads, rounds);
+    }
+
+    private static void readWriteLock(final ReadWriteLock rwLock, String name,
+				      int numThreads, final int rounds) {
+	final Lock lock = new Lock();
+	// readers, writers, and the most readers seen at once
+	final int[] counts = new int[3];
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<rounds; j++) {
+			    boolean write = (j % 16 == 15);
+
+			    if (rwLock == null)
+				lock.acquire();
+			    else if (write)
+				rwLock.acquireWrite();
+			    else
+				rwLock.acquireRead();
+
+			    if (write) {
+				Lib.assertTrue(counts[0] == 0 && counts[1] == 0);
+				counts[1]++;
+			    }
+			    else {
+				Lib.assertTrue(counts[1] == 0);
+				counts[0]++;
+				counts[2] = Math.max(counts[2], counts[0]);
+			    }
+
+			    ThreadedKernel.alarm.waitUntil(100);
+
+			    if (write)
+				counts[1]--;
+			    else
+				counts[0]--;
+
+			    if (rwLock == null)
+				lock.release();
+			    else if (write)
+				rwLock.releaseWrite();
+			    else
+				rwLock.releaseRead();
+			}
+		    }
+		}).setName("reader " + i);
+	}
+
+	long startTicks = Machine.timer().getTime();
+	long start = System.nanoTime();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("ReadWriteLock: " + numThreads + " threads x " +
+			   rounds + " rounds under " + name + ", " +
+			   (Machine.timer().getTime() - startTicks) +
+			   " ticks, " + elapsed/1000000 + " ms, at most " +
+			   counts[2] + " readers at once");
+    }
+
+    /**
+     * Measure how far a priority change has to propagate through donation.
+     * First <i>depth</i>+1 forked threads form a chain, each holding a lock
+     * and waiting for the lock of the thread before it, and the priority of
+     * the last one is switched between the minimum and the maximum
+     * <i>rounds</i> times. Then <i>width</i> threads wait for one lock, and
+     * the priority of one of them is switched the same way. Needs a
+     * <tt>PriorityScheduler</tt>.
+     */
+    private static void donation(int depth, int width, int rounds) {
+	Lib.assertTrue(depth > 0 && width > 0 && rounds > 0);
+	Lib.assertTrue(scheduler instanceof PriorityScheduler &&
+		       !(scheduler instanceof LotteryScheduler),
+		       "donation needs a PriorityScheduler");
+
+	final Semaphore done = new Semaphore(0);
+	final int[] numBlocked = new int[1];
+
+	// thread i holds locks[i] and waits for locks[i-1]; thread 0 waits
+	// for done
+	final Lock[] locks = new Lock[depth+1];
+	KThread[] chain = new KThread[depth+1];
+	for (int i=0; i<=depth; i++) {
+	    final int link = i;
+	    locks[i] = new Lock();
+	    chain[i] = new KThread(new Runnable() {
+		    public void run() {
+			locks[link].acquire();
+			// acquire() and P() disable interrupts before they
+			// block, so nothing runs between here and the wait
+			numBlocked[0]++;
+			if (link == 0) {
+			    done.P();
+			}
+			else {
+			    locks[link-1].acquire();
+			    locks[link-1].release();
+			}
+			locks[link].release();
+		    }
+		}).setName("chain " + i);
+	}
+
+	// start one at a time, so that each finds its locks as intended
+	for (int i=0; i<=depth; i++) {
+	    chain[i].fork();
+	    while (numBlocked[0] <= i)
+		KThread.yield();
+	}
+
+	donation("chain of " + depth, chain[depth], chain[0], rounds);
+
+	done.V();
+	for (int i=0; i<=depth; i++)
+	    chain[i].join();
+
+	// width threads wait for a lock held by holder
+	final Lock lock = new Lock();
+	numBlocked[0] = 0;
+
+	KThread holder = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    numBlocked[0]++;
+		    done.P();
+		    lock.release();
+		}
+	    }).setName("holder");
+	KThread[] waiters = new KThread[width];
+	for (int i=0; i<width; i++) {
+	    waiters[i] = new KThread(new Runnable() {
+		    public void run() {
+			numBlocked[0]++;
+			lock.acquire();
+			lock.release();
+		    }
+		}).setName("waiter " + i);
+	}
+
+	holder.fork();
+	while (numBlocked[0] == 0)
+	    KThread.yield();
+	for (int i=0; i<width; i++)
+	    waiters[i].fork();
+	while (numBlocked[0] <= width)
+	    KThread.yield();
+
+	donation("fan-in of " + width, waiters[width/2], holder, rounds);
+
+	done.V();
+	holder.join();
+	for (int i=0; i<width; i++)
+	    waiters[i].join();
+    }
+
+    private static void donation(String what, KThread thread, KThread holder,
+				 int rounds) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	long start = System.nanoTime();
+	for (int i=0; i<rounds; i++) {
+	    scheduler.setPriority(thread, (i%2 == 0) ?
+				  PriorityScheduler.priorityMaximum :
+				  PriorityScheduler.priorityMinimum);
+	}
+	long elapsed = System.nanoTime() - start;
+
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) ==
+		       ((rounds%2 == 1) ? PriorityScheduler.priorityMaximum :
+			PriorityScheduler.priorityDefault));
+	scheduler.setPriority(thread, PriorityScheduler.priorityDefault);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("PriorityScheduler: " + what + ", " + rounds +
+			   " priority changes in " + elapsed/1000000 +
+			   " ms (" + elapsed/rounds + " ns each)");
+    }
+
+    /**
+     * Fork <i>numThreads</i> threads holding 1, 2, 3 or 4 tickets (or
+     * priority) each, that yield until <i>rounds</i> yields have been made
+     * between them. Print the time per yield and the share of the yields
+     * made by the threads of each ticket count. A fair lottery gives shares
+     * of 10%, 20%, 30% and 40%, and a round-robin scheduler 25% each.
+     */
+    private static void lottery(int numThreads, final int rounds) {
+	Lib.assertTrue(numThreads > 0 && rounds > 0);
+
+	final long[] wins = new long[5];
+	final int[] numYields = new int[1];
+
+	KThread[] threads = new KThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    final int tickets = i%4 + 1;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (numYields[0] < rounds) {
+			    wins[tickets]++;
+			    numYields[0]++;
+			    KThread.yield();
+			}
+		    }
+		}).setName("lottery " + i);
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    scheduler.setPriority(threads[i], tickets);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	long start = System.nanoTime();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].fork();
+	for (int i=0; i<numThreads; i++)
+	    threads[i].join();
+	long elapsed = System.nanoTime() - start;
+
+	String shares = "";
+	for (int i=1; i<=4; i++) {
+	    long tenths = wins[i] * 1000 / rounds;
+	    shares += " " + (tenths / 10) + "." + (tenths % 10) + "%";
+	}
+
+	System.out.println(scheduler.getClass().getName() + ": " +
+			   numThreads + " threads, " + rounds + " yields, " +
+			   elapsed/rounds + " ns each;" +
+			   " shares by tickets 1/2/3/4:" + shares);
+    }
+
+    /**
+     * Measure a fork/join-heavy workload. Every thread in a binary tree of
+     * the given depth forks two children and joins them, and the leaves
+     * yield <i>numYields</i> times each. Under a
+     * <tt>WorkStealingScheduler</tt>, the number of steals is printed too.
+     */
+    private static void forkJoin(int depth, int numYields) {
+	Lib.assertTrue(depth > 0 && numYields >= 0);
+
+	long steals = 0;
+	if (scheduler instanceof WorkStealingScheduler)
+	    steals = ((WorkStealingScheduler) scheduler).getNumSteals();
+
+	long start = System.nanoTime();
+	new ForkJoinTest(depth, numYields).run();
+	long elapsed = System.nanoTime() - start;
+
+	long numThreads = (1L << (depth+1)) - 2;
+	String result = "ForkJoin: " + numThreads +
+	    " threads forked and joined under " +
+	    scheduler.getClass().getName() + " in " + elapsed/1000000 +
+	    " ms (" + elapsed/1000/numThreads + " us/thread)";
+	if (scheduler instanceof WorkStealingScheduler)
+	    result += ", " + (((WorkStealingScheduler) scheduler).getNumSteals()
+			      - steals) + " steals";
+
+	System.out.println(result);
+    }
+
+    private static class ForkJoinTest implements Runnable {
+	ForkJoinTest(int depth, int numYields) {
+	    this.depth = depth;
+	    this.numYields = numYields;
+	}
+
+	public void run() {
+	    if (depth == 0) {
+		for (int i=0; i<numYields; i++)
+		    KThread.yield();
+		return;
+	    }
+
+	    KThread left = new KThread(new ForkJoinTest(depth-1, numYields));
+	    KThread right = new KThread(new ForkJoinTest(depth-1, numYields));
+	    left.setName("fork/join " + (depth-1)).fork();
+	    right.setName("fork/join " + (depth-1)).fork();
+	    left.join();
+	    right.join();
+	}
+
+	private int depth;
+	private int numYields;
+    }
+
+    /** The integer arguments that follow the benchmark's name. */
+    private int[] args;
+}
@@ -0,0 +1,222 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Collection;
+
+/**
+ * A synchronized queue with a fixed capacity, kept in an array ring. Unlike
+ * <tt>SynchList</tt>, a producer that gets ahead of its consumers is held
+ * back once the buffer is full, so the memory a queue can use is bounded.
+ *
+ * <ul>
+ * <li><tt>put()</tt> and <tt>take()</tt> wait as long as they have to.
+ * <li><tt>offer()</tt> and <tt>poll()</tt> give up at once, or after a number
+ * of ticks measured by the alarm.
+ * <li><tt>drainTo()</tt> takes everything that is buffered in one go, for
+ * consumers that handle items in batches.
+ * </ul>
+ *
+ * <p>
+ * Any number of threads may put and take at once. Items come out in the
+ * order they went in.
+ */
+public class BoundedBuffer<T> {
+    /**
+     * Allocate a new bounded buffer.
+     *
+     * @param	capacity	the most items the buffer can hold.
+     */
+    public BoundedBuffer(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	items = new Object[capacity];
+    }
+
+    /**
+     * Add an item to the end of the buffer, waiting for room if the buffer is
+     * full.
+     *
+     * @param	item	the item to add. Must not be <tt>null</tt>.
+     */
+    public void put(T item) {
+	Lib.assertTrue(item != null);
+
+	lock.acquire();
+	notFull.sleepUntil(hasRoom);
+	add(item);
+	lock.release();
+    }
+
+    /**
+     * Add an item to the end of the buffer if there is room.
+     *
+     * @param	item	the item to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the item was added, or <tt>false</tt> if the
+     *		buffer was full.
+     */
+    public boolean offer(T item) {
+	return offer(item, 0);
+    }
+
+    /**
+     * Add an item to the end of the buffer, waiting up to
+     * <i>timeoutTicks</i> ticks for room if the buffer is full.
+     *
+     * @param	item		the item to add. Must not be <tt>null</tt>.
+     * @param	timeoutTicks	the most ticks to wait.
+     * @return	<tt>true</tt> if the item was added, or <tt>false</tt> if the
+     *		buffer was still full.
+     */
+    public boolean offer(T item, long timeoutTicks) {
+	Lib.assertTrue(item != null && timeoutTicks >= 0);
+
+	lock.acquire();
+	boolean added = notFull.sleepUntil(hasRoom, timeoutTicks);
+	if (added)
+	    add(item);
+	lock.release();
+
+	return added;
+    }
+
+    /**
+     * Remove an item from the front of the buffer, waiting for one if the
+     * buffer is empty.
+     *
+     * @return	the item removed from the front of the buffer.
+     */
+    public T take() {
+	lock.acquire();
+	notEmpty.sleepUntil(hasItems);
+	T item = remove();
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Remove an item from the front of the buffer if there is one.
+     *
+     * @return	the item removed, or <tt>null</tt> if the buffer was empty.
+     */
+    public T poll() {
+	return poll(0);
+    }
+
+    /**
+     * Remove an item from the front of the buffer, waiting up to
+     * <i>timeoutTicks</i> ticks for one if the buffer is empty.
+     *
+     * @param	timeoutTicks	the most ticks to wait.
+     * @return	the item removed, or <tt>null</tt> if the buffer was still
+     *		empty.
+     */
+    public T poll(long timeoutTicks) {
+	Lib.assertTrue(timeoutTicks >= 0);
+
+	lock.acquire();
+	T item = null;
+	if (notEmpty.sleepUntil(hasItems, timeoutTicks))
+	    item = remove();
+	lock.release();
+
+	return item;
+    }
+
+    /**
+     * Remove every item in the buffer and add them, in order, to
+     * <i>c</i>. Does not wait: if the buffer is empty, nothing is added.
+     *
+     * @param	c	the collection to add the items to.
+     * @return	the number of items moved.
+     */
+    public int drainTo(Collection<? super T> c) {
+	return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Remove up to <i>maxItems</i> items from the front of the buffer and
+     * add them, in order, to <i>c</i>. Does not wait.
+     *
+     * @param	c		the collection to add the items to.
+     * @param	maxItems	the most items to move.
+     * @return	the number of items moved.
+     */
+    public int drainTo(Collection<? super T> c, int maxItems) {
+	Lib.assertTrue(maxItems >= 0);
+
+	lock.acquire();
+
+	int amount = Math.min(count, maxItems);
+	for (int i=0; i<amount; i++) {
+	    c.add(elementAt(head));
+	    items[head] = null;
+	    head = (head+1) % items.length;
+	}
+	count -= amount;
+
+	// every slot freed can let one producer in
+	notFull.wake(amount);
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Return the number of items in the buffer. The number may be out of
+     * date as soon as it is returned.
+     *
+     * @return	the number of items in the buffer.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Return the most items this buffer can hold.
+     *
+     * @return	the capacity of this buffer.
+     */
+    public int capacity() {
+	return items.length;
+    }
+
+    private void add(T item) {
+	items[(head+count) % items.length] = item;
+	count++;
+	notEmpty.wake();
+    }
+
+    private T remove() {
+	T item = elementAt(head);
+	items[head] = null;
+	head = (head+1) % items.length;
+	count--;
+	notFull.wake();
+
+	return item;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(int i) {
+	return (T) items[i];
+    }
+
+    /** The ring: <tt>count</tt> items from <tt>head</tt>. */
+    private Object[] items;
+    private int head = 0;
+    private int count = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
+
+    private Condition2.Predicate hasRoom = new Condition2.Predicate() {
+	    public boolean test() { return count < items.length; }
+	};
+    private Condition2.Predicate hasItems = new Condition2.Predicate() {
+	    public boolean test() { return count > 0; }
+	};
+}
@@ -8,12 +8,36 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator also has a second, buffered channel for moving many words
+ * at once: <tt>speak(int[], int, int)</tt> and <tt>listen(int[])</tt>. Words
+ * go through a bounded ring buffer, so a speaker and a listener can move up
+ * to a whole buffer of words per context switch, instead of two context
+ * switches per word. The two channels are separate: words spoken one way can
+ * only be heard the same way.
  */
 public class Communicator {
     /**
-     * Allocate a new communicator.
+     * Allocate a new communicator, whose buffered channel holds
+     * <tt>Communicator.bufferSize</tt> words (4096 by default).
      */
     public Communicator() {
+	this(Config.getInteger("Communicator.bufferSize", 4096));
+    }
+
+    /**
+     * Allocate a new communicator. The buffer for the buffered channel is
+     * only allocated once a thread first speaks on it, so that communicators
+     * that only pass single words do not pay for it.
+     *
+     * @param	bufferSize	the number of words the buffered channel can
+     *				hold.
+     */
+    public Communicator(int bufferSize) {
+	Lib.assertTrue(bufferSize > 0);
+
+	this.bufferSize = bufferSize;
     }
 
     /**
@@ -27,6 +51,23 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	lock.acquire();
+
+	// only one word is on offer at a time
+	while (wordReady)
+	    speakers.sleep();
+
+	this.word = word;
+	wordReady = true;
+	int offer = ++numOffered;
+	listeners.wake();
+
+	// another speaker may offer the next word before this thread runs
+	// again, so wait for this offer to be taken, not for the slot to empty
+	while (numTaken < offer)
+	    taken.sleep();
+
+	lock.release();
     }
 
     /**
@@ -34,8 +75,124 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
-	return 0;
+	lock.acquire();
+
+	while (!wordReady)
+	    listeners.sleep();
+
+	int word = this.word;
+	wordReady = false;
+	numTaken++;
+	taken.wake();
+	speakers.wake();
+
+	lock.release();
+
+	return word;
     }
+
+    /**
+     * Put <i>len</i> words into the buffered channel, waiting for room as
+     * needed. Returns once every word is in the buffer, which may be before
+     * any listener has read them. If the words do not all fit at once, other
+     * speakers' words may be interleaved with them.
+     *
+     * @param	words	the array holding the words.
+     * @param	off	the index of the first word to send.
+     * @param	len	the number of words to send.
+     */
+    public void speak(int[] words, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+	lock.acquire();
+
+	if (buffer == null)
+	    buffer = new int[bufferSize];
+
+	while (len > 0) {
+	    while (numBuffered == buffer.length)
+		notFull.sleep();
+
+	    int amount = Math.min(len, buffer.length - numBuffered);
+	    int tail = (head + numBuffered) % buffer.length;
+	    int first = Math.min(amount, buffer.length - tail);
+	    System.arraycopy(words, off, buffer, tail, first);
+	    System.arraycopy(words, off+first, buffer, 0, amount-first);
+
+	    numBuffered += amount;
+	    off += amount;
+	    len -= amount;
+
+	    notEmpty.wake();
+	}
+
+	// pass on the turn if there is still room
+	if (numBuffered < buffer.length)
+	    notFull.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Wait for words to arrive on the buffered channel, and then read as many
+     * as are available, up to the length of <i>buf</i>.
+     *
+     * @param	buf	the array to read the words into.
+     * @return	the number of words read, at least 1 (unless <i>buf</i> is
+     *		empty).
+     */
+    public int listen(int[] buf) {
+	if (buf.length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (numBuffered == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(buf.length, numBuffered);
+	int first = Math.min(amount, buffer.length - head);
+	System.arraycopy(buffer, head, buf, 0, first);
+	System.arraycopy(buffer, 0, buf, first, amount-first);
+
+	head = (head + amount) % buffer.length;
+	numBuffered -= amount;
+
+	notFull.wake();
+	// pass on the turn if there are words left
+	if (numBuffered > 0)
+	    notEmpty.wake();
+
+	lock.release();
+
+	return amount;
+    }
+
+    private Lock lock = new Lock();
+
+    /** Speakers waiting for the word on offer to be taken. */
+    private Condition2 speakers = new Condition2(lock);
+    /** Listeners waiting for a word to be offered. */
+    private Condition2 listeners = new Condition2(lock);
+    /** The speaker whose word is on offer, waiting for a listener. */
+    private Condition2 taken = new Condition2(lock);
+    private int word;
+    private boolean wordReady = false;
+    private int numOffered = 0;
+    private int numTaken = 0;
+
+    /** The number of words the buffered channel can hold. */
+    private int bufferSize;
+    /**
+     * The buffered channel: <tt>numBuffered</tt> words from <tt>head</tt>.
+     * <tt>null</tt> until the first <tt>speak(int[], int, int)</tt>; a
+     * listener cannot get past an empty channel before then.
+     */
+    private int[] buffer = null;
+    private int head = 0;
+    private int numBuffered = 0;
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
 }
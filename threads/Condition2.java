@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.Vector;
 import java.util.LinkedList;
 
 /**
@@ -9,13 +8,25 @@ import java.util.LinkedList;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Besides <tt>sleep()</tt>, <tt>wake()</tt> and <tt>wakeAll()</tt>, a thread
+ * can wake just <i>n</i> waiters with <tt>wake(int)</tt>, sleep with a
+ * timeout with <tt>sleep(long)</tt>, or wait for a <tt>Predicate</tt> with
+ * <tt>sleepUntil()</tt>.
+ *
+ * <p>
+ * By default, woken threads are moved straight onto the lock's wait queue
+ * (<i>wait morphing</i>), since the waker holds the lock. They then run
+ * once, when they are handed the lock, instead of running only to find the
+ * lock busy and sleep again. Set <tt>Condition2.waitMorphing</tt> to
+ * <tt>false</tt> to put them on the ready queue instead. Threads woken by a
+ * timeout always go to the ready queue and reacquire the lock themselves.
  *
  * @see	nachos.threads.Condition
  */
 public class Condition2 {
     /**
-     * Allocate a new condition variable.
+     * Allocate a new condition variable, moving woken threads onto the lock
+     * unless <tt>Condition2.waitMorphing</tt> is <tt>false</tt>.
      *
      * @param	conditionLock	the lock associated with this condition
      *				variable. The current thread must hold this
@@ -23,8 +34,22 @@ public class Condition2 {
      *				<tt>wake()</tt>, or <tt>wakeAll()</tt>.
      */
     public Condition2(Lock conditionLock) {
+	this(conditionLock, Config.getBoolean("Condition2.waitMorphing", true));
+    }
+
+    /**
+     * Allocate a new condition variable.
+     *
+     * @param	conditionLock	the lock associated with this condition
+     *				variable.
+     * @param	waitMorphing	<tt>true</tt> to move woken threads straight
+     *				onto the lock's wait queue, <tt>false</tt> to
+     *				make them ready.
+     */
+    public Condition2(Lock conditionLock, boolean waitMorphing) {
 	this.conditionLock = conditionLock;
-        CV_WaitThread_List = new Vector();  // init conditional waiting set!!
+	this.waitMorphing = waitMorphing;
+        CV_WaitThread_List = new LinkedList<Waiter>();  // init conditional waiting set!!
     }
 
     /**
@@ -34,19 +59,88 @@ public class Condition2 {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      */
     public void sleep() {
+	sleep(new Waiter(), -1);
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once <i>timeoutTicks</i>
+     * ticks have passed, as measured by the alarm. The thread reacquires the
+     * lock either way.
+     *
+     * @param	timeoutTicks	the minimum number of ticks to wait.
+     * @return	<tt>true</tt> if another thread woke this one, or
+     *		<tt>false</tt> if the time ran out.
+     */
+    public boolean sleep(long timeoutTicks) {
+	Lib.assertTrue(timeoutTicks >= 0);
+
+	Waiter waiter = new Waiter();
+	sleep(waiter, timeoutTicks);
+	return !waiter.timedOut;
+    }
+
+    /**
+     * Sleep on this condition variable until <i>predicate</i> holds. The
+     * predicate is tested with the lock held, before sleeping and after every
+     * wakeup.
+     *
+     * @param	predicate	the condition to wait for.
+     */
+    public void sleepUntil(Predicate predicate) {
+	while (!predicate.test())
+	    sleep();
+    }
+
+    /**
+     * Sleep on this condition variable until <i>predicate</i> holds or
+     * <i>timeoutTicks</i> ticks have passed.
+     *
+     * @param	predicate	the condition to wait for.
+     * @param	timeoutTicks	the minimum number of ticks to wait.
+     * @return	whether <i>predicate</i> holds.
+     */
+    public boolean sleepUntil(Predicate predicate, long timeoutTicks) {
+	long deadline = Machine.timer().getTime() + timeoutTicks;
+
+	while (!predicate.test()) {
+	    long remaining = deadline - Machine.timer().getTime();
+	    if (remaining <= 0 || !sleep(remaining))
+		return predicate.test();
+	}
+
+	return true;
+    }
+
+    private void sleep(final Waiter waiter, long timeoutTicks) {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	conditionLock.release();
- 
         ////////////////////////////////////////////////////////////
         boolean intStatus = Machine.interrupt().disable(); // to provide atomicity, must disable interrupt
-        CV_WaitThread_List.add((KThread)KThread.currentThread()); 
+                                                           // before releasing the lock, or a wake() in between is lost
+	conditionLock.release();
+ 
+        CV_WaitThread_List.add(waiter);
         // add thread(caller of sleep) to Conditional Waiting set
-        KThread.currentThread().sleep();
+        if (timeoutTicks >= 0) {
+            ThreadedKernel.alarm.runAfter(timeoutTicks, new Runnable() {
+                    public void run() {
+                        if (waiter.woken)             // wake() got here first; nothing to do
+                            return;
+                        waiter.woken = true;
+                        waiter.timedOut = true;
+                        CV_WaitThread_List.remove(waiter);
+                        waiter.thread.ready();
+                    }
+                });
+        }
+        KThread.sleep();
         Machine.interrupt().restore(intStatus);
         //////////////////////////////////////////////////////////////
 
-	conditionLock.acquire();
+        if (waiter.morphed)                                // a morphed waiter was handed the lock by release()
+            conditionLock.acquiredFromQueue();
+        else
+	    conditionLock.acquire();
     }
 
     /**
@@ -54,14 +148,36 @@ public class Condition2 {
      * current thread must hold the associated lock.
      */
     public void wake() {
+	wake(1);
+    }
+
+    /**
+     * Wake up at most <i>n</i> threads sleeping on this condition variable,
+     * longest sleeping first. The current thread must hold the associated
+     * lock.
+     *
+     * @param	n	the most threads to wake.
+     * @return	the number of threads woken.
+     */
+    public int wake(int n) {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
         boolean intStatus = Machine.interrupt().disable(); // to provide atomicity, must disable interrupt
-        if(CV_WaitThread_List.size() !=0) {                // FCFS Scheduling, ready most longedt waiting thread
-            ((KThread)CV_WaitThread_List.firstElement()).ready(); 
-            CV_WaitThread_List.removeElementAt(0);
+        int numWoken = 0;
+        while (numWoken < n && !CV_WaitThread_List.isEmpty()) { // FCFS Scheduling, longest waiting thread first
+            Waiter waiter = CV_WaitThread_List.removeFirst();
+            waiter.woken = true;
+            if (waitMorphing) {
+                waiter.morphed = true;
+                conditionLock.waitForAccess(waiter.thread);   // straight to the lock, not the ready queue
+            }
+            else {
+                waiter.thread.ready();
+            }
+            numWoken++;
         }
-         Machine.interrupt().restore(intStatus);           // enable interrupt again!!   
+        Machine.interrupt().restore(intStatus);           // enable interrupt again!!   
+        return numWoken;
     }
 
     /**
@@ -69,14 +185,36 @@ public class Condition2 {
      * thread must hold the associated lock.
      */
     public void wakeAll() {
-	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+	wake(Integer.MAX_VALUE);            // wake all threads in conditional waiting set!!!
+    }
 
-         while(CV_WaitThread_List.size()!=0)            // wake all threads in conditional waiting set!!!
-            wake();
+    /**
+     * A condition to wait for with <tt>sleepUntil()</tt>.
+     */
+    public interface Predicate {
+	/**
+	 * Test the condition. Called with the lock held.
+	 *
+	 * @return	<tt>true</tt> if the condition holds.
+	 */
+	public boolean test();
+    }
+
+    /**
+     * A thread sleeping on this condition variable.
+     */
+    private class Waiter {
+	KThread thread = KThread.currentThread();
+	/** Set once <tt>wake()</tt> or the timeout has taken this waiter. */
+	boolean woken = false;
+	boolean timedOut = false;
+	/** True if <tt>wake()</tt> moved the thread onto the lock. */
+	boolean morphed = false;
     }
 
     private Lock conditionLock;      // lock
-    private Vector CV_WaitThread_List = null;   // conditional waiting set!!!
+    private boolean waitMorphing;
+    private LinkedList<Waiter> CV_WaitThread_List = null;   // conditional waiting set!!!
 
 
     ///////////////////// This Class is for Testing ////////////////////////////
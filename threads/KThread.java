@@ -49,7 +49,7 @@ public class KThread {
             //////////////////////////////////
 	}	     
 	else {                            // this is the first thread (we called it main thread)
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
             joined_thread = new Vector(); 
 	    readyQueue.acquire(this);	    
 
@@ -322,8 +322,19 @@ public class KThread {
      */
     private static void runNextThread() {
 	KThread nextThread = readyQueue.nextThread();
-	if (nextThread == null)
+	if (nextThread == null) {
+	    // if the idle thread is yielding to itself, nothing can run until
+	    // an interrupt, so skip ahead to it
+	    if (currentThread == idleThread)
+		Machine.interrupt().idle();
+	    
 	    nextThread = idleThread;
+	}
+
+	// a tickless timer needs no time slice while the CPU is idle
+	if ((nextThread == idleThread) != (currentThread == idleThread) &&
+	    ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.setIdle(nextThread == idleThread);
 
 	nextThread.run();
     }
@@ -358,6 +369,8 @@ public class KThread {
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
+	if (currentThread != this)
+	    numSwitches++;
 	currentThread = this;
 
 	tcb.contextSwitch();
@@ -452,6 +465,16 @@ public class KThread {
         Lib.assertTrue((child1.status==statusFinished), "Expected child1 to be finished.");
     }
 
+    /**
+     * Return the number of times the CPU has switched from one thread to
+     * another. A thread that yields and is chosen again does not count.
+     *
+     * @return	the number of context switches so far.
+     */
+    public static long getNumSwitches() {
+	return numSwitches;
+    }
+
     private static final char dbgThread = 't';
 
     /**
@@ -485,6 +508,8 @@ public class KThread {
     private int id = numCreated++;
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
+    /** Number of switches to a different thread. */
+    private static long numSwitches = 0;
 
     private static ThreadQueue readyQueue = null;
     private static KThread currentThread = null;
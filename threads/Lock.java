@@ -64,6 +64,49 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Put <i>thread</i> on this lock's wait queue, as though it had called
+     * <tt>acquire()</tt> and found the lock busy. The current thread must
+     * hold this lock, and <i>thread</i> must be blocked; it runs again only
+     * once <tt>release()</tt> hands it the lock, and must then call
+     * <tt>acquiredFromQueue()</tt>. <tt>Condition2</tt> uses this to move
+     * woken threads straight onto the lock.
+     *
+     * <p>
+     * These threads never pass through <tt>acquire()</tt>, so a subclass
+     * that keeps track of its waiters in <tt>acquire()</tt> must override
+     * both methods to do the same.
+     *
+     * @param	thread	the blocked thread to queue for this lock.
+     */
+    void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread() && thread != lockHolder);
+
+	waitQueue.waitForAccess(thread);
+    }
+
+    /**
+     * Called by a thread queued with <tt>waitForAccess()</tt> once
+     * <tt>release()</tt> has handed it the lock, in place of the return from
+     * <tt>acquire()</tt>.
+     */
+    void acquiredFromQueue() {
+	Lib.assertTrue(isHeldByCurrentThread());
+    }
+
+    /**
+     * Test if no thread holds this lock. The answer can be out of date by the
+     * time the caller acts on it, unless nothing can switch threads in
+     * between: <tt>AdaptiveLock</tt> checks it and then calls
+     * <tt>acquire()</tt> with no yield or interrupt in between.
+     *
+     * @return	true if this lock is free.
+     */
+    boolean isFree() {
+	return (lockHolder == null);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -32,7 +32,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +42,338 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	// donated tickets add up, and may not fit in an int
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can hold.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can hold.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Add <i>delta</i> tickets to the effective tickets of <i>state</i>, and
+     * pass the change on to every thread it is waiting for through a
+     * ticket-transferring queue. Each waiting queue's ticket tree is updated
+     * on the way, so the cost is O(log n) per queue in the chain.
+     *
+     * <p>
+     * A thread waits in at most one queue, so the chain is a path; it is cut
+     * short if it loops back on itself (a deadlock), since the donated sum
+     * is then unbounded.
+     */
+    private void donate(LotteryState state, long delta) {
+	if (delta == 0)
+	    return;
+
+	int epoch = ++donationEpoch;
+
+	while (state != null && state.donationEpoch != epoch) {
+	    state.donationEpoch = epoch;
+	    state.effectiveTickets += delta;
+
+	    LotteryQueue queue = state.waitingOn;
+	    if (queue == null)
+		break;
+
+	    queue.update(state.slot, delta);
+	    state = queue.transferPriority ? queue.holder : null;
+	}
+    }
+
+    private int donationEpoch = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot in a Fenwick (binary indexed) tree
+     * over its effective tickets, so adding or removing a thread, changing
+     * its tickets, and drawing the winning ticket all take O(log n) time,
+     * instead of summing and scanning the whole queue on every draw. Freed
+     * slots are reused before the tree grows.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (numFree > 0) {
+		state.slot = freeSlots[--numFree];
+	    }
+	    else {
+		if (numSlots == slots.length)
+		    grow();
+		state.slot = numSlots++;
+	    }
+
+	    slots[state.slot] = state;
+	    state.waitingOn = this;
+	    numWaiting++;
+	    update(state.slot, state.effectiveTickets);
+
+	    if (transferPriority && holder != null)
+		donate(holder, state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(numWaiting == 0);
+
+	    // with nobody waiting, there are no tickets to take back or hand on
+	    holder = getLotteryState(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    long donated = totalTickets;
+
+	    LotteryState winner = pickNextThread();
+	    if (winner != null)
+		remove(winner);
+
+	    if (transferPriority) {
+		// the old holder gives back everything the waiters donated, and
+		// the winner collects from those still waiting
+		if (holder != null)
+		    donate(holder, -donated);
+		holder = winner;
+		if (holder != null)
+		    donate(holder, totalTickets);
+	    }
+
+	    return (winner == null) ? null : winner.thread;
+	}
+
+	/**
+	 * Draw a ticket and return the thread holding it, without modifying
+	 * the state of this queue.
+	 *
+	 * @return	the winning thread's state, or <tt>null</tt> if no thread
+	 *		is waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = Math.min((long) (Lib.random() * totalTickets),
+				  totalTickets-1);
+
+	    return slots[find(ticket)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numSlots; i++) {
+		if (slots[i] != null)
+		    System.out.print(slots[i].thread + " (" +
+				     slots[i].effectiveTickets + ") ");
+	    }
+	}
+
+	/**
+	 * Take a waiting thread out of the lottery.
+	 */
+	private void remove(LotteryState state) {
+	    update(state.slot, -state.effectiveTickets);
+	    slots[state.slot] = null;
+	    freeSlots[numFree++] = state.slot;
+	    numWaiting--;
+
+	    state.waitingOn = null;
+	    state.slot = -1;
+	}
+
+	/**
+	 * Add <i>delta</i> tickets to the specified slot.
+	 */
+	void update(int slot, long delta) {
+	    totalTickets += delta;
+	    for (int i=slot+1; i<=slots.length; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, that is, the first slot
+	 * whose running ticket sum exceeds <i>ticket</i>. Empty slots hold no
+	 * tickets, so they are never chosen.
+	 */
+	private int find(long ticket) {
+	    int index = 0;
+	    for (int step=Integer.highestOneBit(numSlots); step>0; step>>=1) {
+		if (index+step <= numSlots && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return index;
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in O(n).
+	 */
+	private void grow() {
+	    int capacity = slots.length*2;
+
+	    LotteryState[] newSlots = new LotteryState[capacity];
+	    System.arraycopy(slots, 0, newSlots, 0, numSlots);
+	    slots = newSlots;
+
+	    int[] newFree = new int[capacity];
+	    System.arraycopy(freeSlots, 0, newFree, 0, numFree);
+	    freeSlots = newFree;
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (i <= numSlots && slots[i-1] != null)
+		    tree[i] += slots[i-1].effectiveTickets;
+
+		int parent = i + (i & -i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/** The thread that last acquired this queue. */
+	private LotteryState holder = null;
+
+	private LotteryState[] slots = new LotteryState[8];
+	/** Fenwick tree over the slots' tickets, indexed from 1. */
+	private long[] tree = new long[slots.length+1];
+	private int numSlots = 0;
+	private int[] freeSlots = new int[slots.length];
+	private int numFree = 0;
+	private int numWaiting = 0;
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its own tickets, and the sum of its
+     * own and all donated tickets.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the number of tickets this thread holds, and pass the change
+	 * on to the threads it is waiting for.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = tickets - this.tickets;
+	    this.tickets = tickets;
+	    donate(this, delta);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** This thread's own tickets. */
+	protected long tickets = priorityDefault;
+	/** This thread's own tickets plus all tickets donated to it. */
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queue this thread is waiting in, if any. */
+	private LotteryQueue waitingOn = null;
+	/** This thread's slot in <tt>waitingOn</tt>. */
+	private int slot = -1;
+	private int donationEpoch = 0;
     }
 }
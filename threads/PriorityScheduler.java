@@ -6,7 +6,6 @@ import java.util.LinkedList;
 import java.util.TreeSet;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.PriorityQueue; 
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -129,6 +128,8 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 	 */
 	public static final int priorityMaximum = 7;
 
+	private static final char dbgThread = 't';
+
 	/**
 	 * 특정 KThread의, Scheduling 상태를 반환 (PriorityScheduler 에 의해 호출)
 	 *
@@ -185,6 +186,7 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		//Lock을 얻고자 하는 T2에는 높은 우선순위를 부여
 		((ThreadState) T2.schedulingState).setPriority(5);
 	}
+
 	// --------------------------------------------------------------------------------------------------
 
 
@@ -222,19 +224,21 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState threadState = this.pickNextThread();         // 종합적 우선순위가 가장 높은 KThread 의 Scheduling 상태 정보 조회
 
-			priorityQueue.remove(threadState);                       // priorityQueue 에서, 해당 KThread(종합적 우선순위가 가장 높은 KThread) 의 Scheduling 상태 정보 제거
-			
-			if (transferPriority && threadState != null) {           // 
-				this.dequeuedThread.removeQueue(this);               // 해당 KThread 의 Scheduling 상태 정보에서, 해당 KThread 가 제거된 priorityQueue 를 제거
-				threadState.acquire(this);                           // 해당 KThread 가 현재의 Priority Queue 에 대한 접근권한을 획득 
+			remove(threadState);                                     // priorityQueue 에서, 해당 KThread(종합적 우선순위가 가장 높은 KThread) 의 Scheduling 상태 정보 제거
+			if (threadState != null)
 				threadState.waiting = null;                          // 해당 KThread 가 Run 되도록 선택되었으므로, 기존에 준비 상태로 대기하고 있던 waiting Queue 에 대한 정보는 필요 없음 
-				threadState.addQueue(this);                          // 현재 상태의 priorityQueue 를 Donation Queue 리스트에 append
+			
+			if (transferPriority) {
+				if (this.dequeuedThread != null)
+					this.dequeuedThread.removeQueue(this);           // 이전 소유자는 더 이상 이 큐로부터 우선순위를 양도받지 않음 (EP 재계산)
+				this.dequeuedThread = threadState;
+				if (threadState != null)
+					threadState.addQueue(this);                      // 새 소유자는 남은 대기자들로부터 우선순위를 양도받음 (EP 재계산)
 			}
 
 			this.dequeuedThread = threadState;                       // 가장 최근에, priorityQueue 에서 제거된 KThread 의 Scheduling 상태 정보를 설정  
 
-			if (threadState == null){                                // 만약, priorityQueue 가 비어있었다면, 새로운 priorityQueue 를 생성
-				this.priorityQueue = new PriorityQueue<ThreadState>();  
+			if (threadState == null){                                // 만약, priorityQueue 가 비어있었다면, null 반환
 				return null;                                             
 			}
 			return threadState.thread;
@@ -249,16 +253,103 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		protected ThreadState pickNextThread() {
 			boolean intStatus = Machine.interrupt().disable();
 
-			// 바로 이전의 priorityQueue 를, 우선순위에 기반하여 재정렬
-			// 이는, priorityQueue 내의 KThread 들의 Scheduling 상태 정보들이 제대로 정렬됬는지 확인하기 위함
-			this.priorityQueue = new PriorityQueue<ThreadState>(priorityQueue); 
+			// EP 가 바뀐 KThread 는 calcEffectivePriority() 에서 이미 알맞은 레벨로 옮겨졌으므로, 재정렬은 필요 없음
+			// (예전처럼 interrupt 를 disable/restore 하는 것은, 시뮬레이션 시간이 똑같이 흐르도록 유지)
 			
 			Machine.interrupt().restore(intStatus);
 
-            // priorityQueue 의 가장 첫원소(종합 우선순위가 가장 높은 KThread 의 Scheduling 상태 정보)를 가져옴 
-			// (이때, 가져오는 Scheduling 상태 정보는 priorityQueue 에서 삭제하지 않음, peek() 메소드 참조)
-			return this.priorityQueue.peek(); 
+            // 비어 있지 않은 가장 높은 레벨의 맨 앞 원소(종합 우선순위가 가장 높은 KThread 의 Scheduling 상태 정보)를 가져옴 
+			// (이때, 가져오는 Scheduling 상태 정보는 priorityQueue 에서 삭제하지 않음)
+			if (nonEmptyLevels == 0)
+				return null;
+
+			return heads[31 - Integer.numberOfLeadingZeros(nonEmptyLevels)]; 
+
+		}
+
+		/**
+		 * 대기 중인 KThread 들의 EP 중 최대값을 반환 (O(1), 비어 있지 않은 레벨의 bitmap 을 이용)
+		 *
+		 * @return 대기 중인 KThread 들의 최대 EP, 대기 중인 KThread 가 없으면 -1
+		 */
+		protected int maxWaiterPriority() {
+			if (nonEmptyLevels == 0)
+				return -1;
+
+			return 31 - Integer.numberOfLeadingZeros(nonEmptyLevels);
+		}
+
+		/**
+		 * 대기 중인 KThread 가 없는지 여부를 반환
+		 *
+		 * @return 대기 중인 KThread 가 없으면 true
+		 */
+		protected boolean isEmpty() {
+			return nonEmptyLevels == 0;
+		}
+
+		/**
+		 * KThread 의 Scheduling 상태 정보를, EP 에 해당하는 레벨에 추가.
+		 * 같은 레벨 안에서는 age 순서(먼저 대기하기 시작한 것이 앞)를 유지하며, age 가 같으면 먼저 추가된 것이 앞에 위치함.
+		 * waitForAccess() 로 추가되는 경우 age 가 가장 크므로, 맨 뒤에 바로 추가됨 (O(1))
+		 * 대기 중에 EP 가 바뀌어 레벨을 옮기는 경우에는, 새 레벨에서 자신보다 나중에 대기하기 시작한 원소 k 개를
+		 * 뒤에서부터 지나쳐야 하므로 O(k) 임 (age 순서를 지키기 위함)
+		 *
+		 * @param state 추가할 Scheduling 상태 정보
+		 */
+		protected void add(ThreadState state) {
+			Lib.assertTrue(state.queuedOn == null);
+
+			int level = state.getEffectivePriority();
+			Lib.assertTrue(level >= priorityMinimum && level <= priorityMaximum);
+
+			// 뒤에서부터, age 가 같거나 더 작은 원소를 찾아 그 뒤에 삽입
+			ThreadState before = tails[level];
+			while (before != null && before.age > state.age)
+				before = before.queuePrev;
+
+			ThreadState after = (before == null) ? heads[level] : before.queueNext;
+
+			state.queuePrev = before;
+			state.queueNext = after;
+			if (before == null)
+				heads[level] = state;
+			else
+				before.queueNext = state;
+			if (after == null)
+				tails[level] = state;
+			else
+				after.queuePrev = state;
+
+			state.queuedOn = this;
+			state.queuedLevel = level;
+			nonEmptyLevels |= (1 << level);
+		}
 
+		/**
+		 * KThread 의 Scheduling 상태 정보를 현재 큐에서 제거 (O(1)). 큐에 없으면 아무것도 하지 않음
+		 *
+		 * @param state 제거할 Scheduling 상태 정보
+		 */
+		protected void remove(ThreadState state) {
+			if (state == null || state.queuedOn != this)
+				return;
+
+			int level = state.queuedLevel;
+			if (state.queuePrev == null)
+				heads[level] = state.queueNext;
+			else
+				state.queuePrev.queueNext = state.queueNext;
+			if (state.queueNext == null)
+				tails[level] = state.queuePrev;
+			else
+				state.queueNext.queuePrev = state.queuePrev;
+
+			if (heads[level] == null)
+				nonEmptyLevels &= ~(1 << level);
+
+			state.queuePrev = state.queueNext = null;
+			state.queuedOn = null;
 		}
 
 		/* 추상 메소드, 구현하실 필요 없습니다. */
@@ -267,8 +358,12 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 			// implement me (if you want)
 		}
 
-		// KThread 들의 Scheduling 상태 정보들을, 우선순위에 따라 정렬한 Queue 정의
-		protected PriorityQueue<ThreadState> priorityQueue = new PriorityQueue<ThreadState>();   
+		// KThread 들의 Scheduling 상태 정보들을, 우선순위(EP) 레벨마다 하나씩의 FIFO 로 정렬한 Queue 정의
+		// 각 레벨은 ThreadState 의 queuePrev/queueNext 로 연결된 이중 연결 리스트이며, 
+		// nonEmptyLevels 의 i 번째 비트는 i 레벨이 비어 있지 않음을 나타냄
+		protected ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		protected ThreadState[] tails = new ThreadState[priorityMaximum+1];
+		protected int nonEmptyLevels = 0;
 
 		protected ThreadState dequeuedThread = null;  
 		// 가장 최근에 priorityQueue 에서 제거된 KThread 에 대한 Scheduling 상태 정보
@@ -316,36 +411,39 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		}
 
 		/**
-		 * 특정 KThread 의 실질적 우선순위와, 현재 공유자원에 대한 Lock을 Holding 하고 있는 KThread 의 EP를 계산
+		 * 특정 KThread 의 실질적 우선순위와, 현재 공유자원에 대한 Lock을 Holding 하고 있는 KThread 의 EP를 계산.
+		 * EP 는 '기본 우선순위' 와, 소유한 각 큐(onQueues)의 대기자 최대 EP(maxWaiterPriority(), O(1)) 중 최대값.
+		 * EP 가 바뀐 경우에만, 대기 중인 큐의 소유자로 따라 올라가며 재계산하고, EP 가 바뀌지 않는 곳에서 멈춤
+		 * (재귀 대신 반복문을 사용하므로, Lock 사슬이 길어도 스택이 넘치지 않음)
          * @return None
 		 */
 		public void calcEffectivePriority() {
-			int initialPriority = this.getPriority();                             // 현재 KThread의, '기본적 우선순위'를 가져옴 
-			int maxEP = -1;                                                       // 현재 KThread의 가능한 실질적 우선순위의 최대치에 대한 정의
-        
-			if (onQueues.size() != 0){                                            // onQueues 에 저장된
-				int size = onQueues.size();
-
-				for(int i = 0; i < size; i++){                                    // 
-					PriorityThreadQueue current = onQueues.get(i);
-					ThreadState donator = current.pickNextThread();               // 현재 Priority Queue 에서, 종합적 우선순위(=스케쥴링 중요도)가 가장 높은 KThread의 Scheduling 상태 정보를 조회
-					if (donator != null){
-						if ((donator.getEffectivePriority() > maxEP) && current.transferPriority)   
-							maxEP = donator.getEffectivePriority();               // maxEP(실질적 우선순위의 최대치) 를, 양도자의 EP 로 설정
-					}
+			ThreadState state = this;
+
+			while (state != null) {
+				int maxEP = state.getPriority();                                  // 현재 KThread의, '기본적 우선순위'에서 시작
+				for (PriorityThreadQueue current : state.onQueues) {             // 소유한 큐들의 대기자 최대 EP 를 양도받음
+					if (current.transferPriority)
+						maxEP = Math.max(maxEP, current.maxWaiterPriority());
 				}
-			}
-			if (initialPriority > maxEP){                                         // 만일, '기본적 우선순위' 가, 양도자로부터 양도받을 수 있는 EP 보다 더 크다면, maxEP(실질적 우선순위의 최대치) 는 '기본적 우선순위로 설정'
-				maxEP = initialPriority;                         
-			}
-			this.effectivePriority = maxEP;                                       // 현재 KThread 의 EP 를, maxEP(실질적 우선순위의 최대치) 로 설정         
 
-			if (this.waiting != null && this.waiting.dequeuedThread != null){
-				if (this.effectivePriority != this.waiting.dequeuedThread.effectivePriority){
-					this.waiting.dequeuedThread.calcEffectivePriority();          // 공유자원에 대한 Lockholder KThread 에 대한 EP 계산
+				if (maxEP == state.effectivePriority)                             // EP 가 그대로라면, 더 이상 전파할 필요 없음
+					return;
+
+				if (state.queuedOn != null) {                                     // 큐에서 대기 중에 EP 가 바뀌었다면, 새 EP 의 레벨로 옮김 (add() 참고, O(k))
+					PriorityThreadQueue queue = state.queuedOn;
+					queue.remove(state);
+					state.effectivePriority = maxEP;
+					queue.add(state);
 				}
-			};
-			
+				state.effectivePriority = maxEP;                                  // 현재 KThread 의 EP 를, maxEP(실질적 우선순위의 최대치) 로 설정         
+
+				PriorityThreadQueue waitQueue = state.waiting;                    // 대기 중인 큐의 소유자(Lockholder) 의 EP 를 이어서 계산
+				if (waitQueue != null && waitQueue.transferPriority)
+					state = waitQueue.dequeuedThread;
+				else
+					state = null;
+			}
 		}
 		
 		// 즉, 전체적으로, 우선순위 양도를, Lock 을 소유하고 있지 않은 KThread 들의 스케쥴링 중요도를 낮춤(우선순위 값을 높임)으로써,상대적으로 Lock 을 소유하고 있는 KThread 의 스케쥴링 중요도를 높이도록 함.
@@ -368,11 +466,9 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		public void setPriority(int priority) {
 			
 			this.priority = priority;                // 특정 KThread 의 '기본 우선순위' 값을 설정
-			this.calcEffectivePriority();            // '기본 우선순위' 값이 변경되었으므로, 이에 기반하여, 실질적 우선순위 재 계산
-			if(this.waiting != null && this.waiting.dequeuedThread != null)
-				this.waiting.dequeuedThread.calcEffectivePriority();
+			this.calcEffectivePriority();            // '기본 우선순위' 값이 변경되었으므로, 이에 기반하여, 실질적 우선순위 재 계산 (Lockholder 들에게도 전파)
 			
-			System.out.println(this.thread.getName()+" has "+this.getEffectivePriority()+" priority : "+Machine.timer().getTime());
+			Lib.debug(dbgThread, this.thread.getName()+" has "+this.getEffectivePriority()+" priority : "+Machine.timer().getTime());
 		}
 
 		/** 
@@ -387,9 +483,10 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 			this.age = time;               
 			// --------------------------------------
 
-			waitQueue.priorityQueue.add(this); // 
+			waitQueue.add(this);               // 현재 KThread 를, EP 에 해당하는 레벨의 맨 뒤에 추가
 			this.waiting = waitQueue;          // 현재 KThread 는 해당 priorityQueue(waitQueue) 에 접근하기 위해 대기 중 (즉, waitQueue 에 대해 대기 중임)
-			this.calcEffectivePriority();      // 현재 KThread 의 EP 를 재계산
+			if (waitQueue.transferPriority && waitQueue.dequeuedThread != null)
+				waitQueue.dequeuedThread.calcEffectivePriority();  // 새 대기자의 EP 를 Lockholder 에게 양도
 		}
 
 		/** 
@@ -400,12 +497,13 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		 */
 		public void acquire(PriorityThreadQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			Lib.assertTrue(waitQueue.priorityQueue.isEmpty());          // 현재 waitQueue(Priority Thread Queue) 에 존재하는 그 어떠한 KThread 가 없다는 것을 확인       
+			Lib.assertTrue(waitQueue.isEmpty());                        // 현재 waitQueue(Priority Thread Queue) 에 존재하는 그 어떠한 KThread 가 없다는 것을 확인       
 			                                                            // 그래야 바로 공유 자원에 접근할 수 있으므로!!
-			//waitQueue.priorityQueue.remove(this);
+			//waitQueue.remove(this);
+			if (waitQueue.dequeuedThread != null && waitQueue.transferPriority)
+				waitQueue.dequeuedThread.removeQueue(waitQueue);        // 이전 소유자는 더 이상 이 큐를 소유하지 않음
 			waitQueue.dequeuedThread = this;                            // 현재 공유자원(waitQueue가 접근을 관리하는!!)에 대한 Lock 을 얻은 KThread 는 this KThread! 
 			this.addQueue(waitQueue);                                   // 현재 상태의 priorityQueue(waitQueue) 를, onQueues에 추가 (다른 KThread 가 this KThread 가 가지고 있는 Lock 을 요청할 수도 있기 때문!)
-			this.calcEffectivePriority();                               // 현재 KThread 의 EP 를 재계산
 		}
 
 
@@ -462,7 +560,8 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		 * Donation Queue 들에 추가하고자 하는 PriorityQueue
 		 */
 		public void addQueue(PriorityThreadQueue queue){
-			onQueues.add(queue);
+			if (!onQueues.contains(queue))                       // 같은 큐가 중복해서 들어가지 않도록 함
+				onQueues.add(queue);
 			this.calcEffectivePriority();
 		}
 
@@ -481,6 +580,10 @@ public class PriorityScheduler extends Scheduler {           // 우선순위 스
 		protected LinkedList<PriorityThreadQueue> onQueues;     // Donation Queue 들을 Linked 구조로 연결 (현재 KThread 에 의해 Holding 되고 있는 자원들에 대한 List)
 		protected int effectivePriority;                        // 현재 KThread 의 '실질적 우선순위'
 		protected PriorityThreadQueue waiting;                  // 현재 KThread 가 접근하기 위해 대기 중인 Priority Queue
+
+		protected PriorityThreadQueue queuedOn = null;          // 현재 KThread 가 실제로 들어 있는 Priority Queue (없으면 null)
+		protected int queuedLevel;                              // queuedOn 에서 들어 있는 레벨 (들어갈 때의 EP)
+		protected ThreadState queuePrev = null, queueNext = null; // 같은 레벨에서 앞/뒤의 Scheduling 상태 정보
 	}
 }
 
@@ -0,0 +1,302 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets many threads read a shared structure at once,
+ * while a thread that writes it has it to itself. There are three ways to
+ * hold it:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: shared with other readers and with an
+ * upgradable reader.
+ * <li><tt>acquireWrite()</tt>: exclusive.
+ * <li><tt>acquireUpgradable()</tt>: shared with plain readers, but not with
+ * writers or other upgradable readers. An upgradable reader can
+ * <tt>upgrade()</tt> to the write lock without letting anyone else write in
+ * between, so it can look first and write only if it has to.
+ * </ul>
+ *
+ * <p>
+ * Writers and upgradable readers wait in a thread queue with priority
+ * transfer, so they donate their priority to the writer or upgradable reader
+ * holding the lock, or to the one next in line while readers drain out.
+ * Plain readers are not donated to, because a thread queue has a single
+ * holder.
+ *
+ * <p>
+ * A lock prefers writers by default: once a writer is waiting, new readers
+ * wait behind it, and when a writer releases the lock, the next writer goes
+ * before any waiting reader. Under a steady stream of writers, readers can
+ * starve. A <i>fair</i> lock instead lets every reader that was waiting when
+ * a writer released the lock in before the next writer, so readers and
+ * writers take turns.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock, fair if <tt>ReadWriteLock.fair</tt> is
+     * set and preferring writers otherwise. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+	this(Config.getBoolean("ReadWriteLock.fair", false));
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	fair	<tt>true</tt> to let waiting readers and writers take
+     *			turns, <tt>false</tt> to prefer writers.
+     */
+    public ReadWriteLock(boolean fair) {
+	this.fair = fair;
+    }
+
+    /**
+     * Wait until no thread holds or is waiting for the write lock, and then
+     * acquire a read lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if ((owner != null && writing) || upgrading || writersWaiting()) {
+	    numReadersWaiting++;
+	    readQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+	else {
+	    numReaders++;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Release a read lock held by the current thread.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(numReaders > 0);
+	numReaders--;
+	grant(false);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wait until no other thread holds this lock, and then acquire the write
+     * lock. The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	acquireExclusive(true);
+    }
+
+    /**
+     * Release the write lock.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	releaseExclusive(fair);
+    }
+
+    /**
+     * Wait until no other thread holds the write lock or an upgradable read
+     * lock, and then acquire an upgradable read lock. The current thread must
+     * not already hold this lock.
+     */
+    public void acquireUpgradable() {
+	acquireExclusive(false);
+    }
+
+    /**
+     * Release the upgradable read lock held by the current thread.
+     */
+    public void releaseUpgradable() {
+	Lib.assertTrue(owner == KThread.currentThread() && !writing);
+
+	releaseExclusive(false);
+    }
+
+    /**
+     * Wait for the plain readers to release their read locks, and then turn
+     * the current thread's upgradable read lock into the write lock. New
+     * readers wait until the write lock is released.
+     */
+    public void upgrade() {
+	Lib.assertTrue(owner == KThread.currentThread() && !writing);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numReaders > 0) {
+	    upgrading = true;
+	    KThread.sleep();
+	}
+	else {
+	    writing = true;
+	}
+
+	Lib.assertTrue(writing);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Turn the write lock held by the current thread back into an upgradable
+     * read lock, letting waiting readers in if no writer is waiting.
+     */
+    public void downgrade() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writing = false;
+	grant(fair);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds the write lock.
+     *
+     * @return	true if the current thread holds the write lock.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (owner == KThread.currentThread() && writing);
+    }
+
+    private void acquireExclusive(boolean write) {
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(owner != thread && pending != thread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (owner == null && pending == null && numQueued == 0) {
+	    writeQueue.acquire(thread);
+
+	    if (!write || numReaders == 0) {
+		owner = thread;
+		writing = write;
+	    }
+	    else {
+		// first in line: wait for the readers to drain out
+		pending = thread;
+		pendingWrites = true;
+		KThread.sleep();
+	    }
+	}
+	else {
+	    numQueued++;
+	    if (write)
+		numWritersQueued++;
+	    else
+		upgradersQueued.add(thread);
+
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(owner == thread && writing == write);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void releaseExclusive(boolean readersFirst) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	owner = null;
+	writing = false;
+
+	// hand the queue, and the donations of whoever is still in it, to
+	// the next writer or upgradable reader in line
+	pending = writeQueue.nextThread();
+	if (pending != null) {
+	    numQueued--;
+	    pendingWrites = !upgradersQueued.remove(pending);
+	    if (pendingWrites)
+		numWritersQueued--;
+	}
+
+	grant(readersFirst);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private boolean writersWaiting() {
+	return numWritersQueued > 0 || (pending != null && pendingWrites);
+    }
+
+    /**
+     * Let in whichever waiting threads can hold this lock now.
+     *
+     * @param	readersFirst	<tt>true</tt> if the readers that are waiting
+     *				now should go before the next writer.
+     */
+    private void grant(boolean readersFirst) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (owner != null && writing)
+	    return;
+
+	if (upgrading) {
+	    if (numReaders == 0) {
+		upgrading = false;
+		writing = true;
+		owner.ready();
+	    }
+	    return;
+	}
+
+	readersFirst = readersFirst && numReadersWaiting > 0;
+
+	if (pending != null) {
+	    if (!pendingWrites) {
+		owner = pending;
+		pending = null;
+		owner.ready();
+	    }
+	    else if (numReaders == 0 && !readersFirst) {
+		owner = pending;
+		writing = true;
+		pending = null;
+		owner.ready();
+		return;
+	    }
+	}
+
+	if (readersFirst || !writersWaiting()) {
+	    for (; numReadersWaiting > 0; numReadersWaiting--) {
+		numReaders++;
+		readQueue.nextThread().ready();
+	    }
+	}
+    }
+
+    private boolean fair;
+
+    /** The number of plain readers holding the lock. */
+    private int numReaders = 0;
+    /** The writer or upgradable reader holding the lock. */
+    private KThread owner = null;
+    /** True if <tt>owner</tt> holds the write lock. */
+    private boolean writing = false;
+    /** True if <tt>owner</tt> is waiting in <tt>upgrade()</tt>. */
+    private boolean upgrading = false;
+    /** The writer or upgradable reader next in line, out of the queue. */
+    private KThread pending = null;
+    private boolean pendingWrites = false;
+
+    private int numReadersWaiting = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /** Writers and upgradable readers waiting behind <tt>pending</tt>. */
+    private int numQueued = 0;
+    private int numWritersQueued = 0;
+    private HashSet<KThread> upgradersQueued = new HashSet<KThread>();
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
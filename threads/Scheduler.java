@@ -52,6 +52,19 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. <tt>KThread</tt>
+     * calls this once, when the first thread is created. A scheduler that
+     * manages ready threads differently from threads waiting for a resource
+     * can override this; by default it returns
+     * <tt>newThreadQueue(false)</tt>.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -0,0 +1,262 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A scheduler that keeps a separate deque of ready threads for each of
+ * several simulated CPUs, and lets a CPU whose deque is empty steal from its
+ * siblings.
+ *
+ * <p>
+ * Each thread belongs to a group, a number from 0 to
+ * <tt>WorkStealingScheduler.numQueues - 1</tt> (4 by default), set with
+ * <tt>setGroup()</tt>. A thread joins the group of the thread that created
+ * it, so process groups stay together until stealing spreads them out. The
+ * ready queue has one deque per group. Dequeues go round the groups in turn,
+ * taking the oldest thread of the group whose turn it is. If that group has
+ * nobody waiting, it steals the oldest thread of the longest sibling deque,
+ * and the stolen thread joins the thief's group.
+ *
+ * <p>
+ * Only the ready queue is split into groups. Threads waiting for a lock, a
+ * semaphore or a join wait in plain FIFO queues, which never move a thread
+ * to another group. Priorities are kept, but do not affect scheduling, as
+ * with <tt>RoundRobinScheduler</tt>.
+ *
+ * <p>
+ * Owners and thieves both take the oldest thread. On a real multiprocessor,
+ * thieves take from the other end of the deque so that they do not contend
+ * with its owner. Only one thread ever touches these deques, so that does not
+ * matter here, and taking the oldest keeps a single group strictly FIFO, as
+ * <tt>RoundRobinScheduler</tt> is.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	numGroups = Config.getInteger("WorkStealingScheduler.numQueues", 4);
+	Lib.assertTrue(numGroups >= 1);
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored. Priorities are not donated.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FifoQueue();
+    }
+
+    /**
+     * Allocate the ready queue, with one deque per group.
+     *
+     * @return	a new work-stealing thread queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new StealingQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).priority = priority;
+    }
+
+    /**
+     * Return the group of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to get the group of.
+     * @return	the thread's group.
+     */
+    public int getGroup(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).group;
+    }
+
+    /**
+     * Move the specified thread to another group. If it is already in the
+     * ready queue, it moves the next time it is made ready. Must be called
+     * with interrupts disabled.
+     *
+     * @param	thread	the thread to move.
+     * @param	group	the new group, between 0 and
+     *			<tt>getNumGroups() - 1</tt>.
+     */
+    public void setGroup(KThread thread, int group) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(group >= 0 && group < numGroups);
+
+	getThreadState(thread).group = group;
+    }
+
+    /**
+     * Return the number of groups, each with its own deque in every queue.
+     *
+     * @return	the number of groups.
+     */
+    public int getNumGroups() {
+	return numGroups;
+    }
+
+    /**
+     * Return the number of threads stolen from another group's deque so
+     * far, in all queues.
+     *
+     * @return	the number of steals.
+     */
+    public long getNumSteals() {
+	return numSteals;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, creating it in
+     * the current thread's group if it does not exist yet.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null) {
+	    ThreadState state = new ThreadState();
+
+	    KThread creator = KThread.currentThread();
+	    if (creator != null && creator != thread &&
+		creator.schedulingState instanceof ThreadState)
+		state.group = ((ThreadState) creator.schedulingState).group;
+
+	    thread.schedulingState = state;
+	}
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private int numGroups;
+    private long numSteals = 0;
+
+    /**
+     * A thread queue that ignores groups: threads leave in the order they
+     * arrived.
+     */
+    protected class FifoQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waitQueue.addLast(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.pollFirst();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (KThread thread : waitQueue)
+		System.out.print(thread + " ");
+	}
+
+	private ArrayDeque<KThread> waitQueue = new ArrayDeque<KThread>();
+    }
+
+    /**
+     * The ready queue, with one FIFO deque per group.
+     */
+    protected class StealingQueue extends ThreadQueue {
+	StealingQueue() {
+	    deques = new ArrayList<ArrayDeque<KThread>>(numGroups);
+	    for (int i=0; i<numGroups; i++)
+		deques.add(new ArrayDeque<KThread>());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    deques.get(getThreadState(thread).group).addLast(thread);
+	    size++;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return null;
+
+	    turn = (turn+1) % numGroups;
+	    size--;
+
+	    if (!deques.get(turn).isEmpty())
+		return deques.get(turn).pollFirst();
+
+	    // steal from the sibling with the most waiting threads
+	    int victim = turn;
+	    for (int i=0; i<numGroups; i++) {
+		if (deques.get(i).size() > deques.get(victim).size())
+		    victim = i;
+	    }
+
+	    KThread thread = deques.get(victim).pollFirst();
+	    getThreadState(thread).group = turn;
+	    numSteals++;
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numGroups; i++) {
+		System.out.print(i + ":");
+		for (KThread thread : deques.get(i))
+		    System.out.print(" " + thread);
+		System.out.print(" ");
+	    }
+	}
+
+	private ArrayList<ArrayDeque<KThread>> deques;
+	/** The group whose turn it is to dequeue. */
+	private int turn = numGroups-1;
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     */
+    protected static class ThreadState {
+	/** The group this thread belongs to. */
+	int group = 0;
+	/** The priority, which does not affect scheduling. */
+	int priority = 0;
+    }
+}
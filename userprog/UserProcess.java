@@ -200,9 +200,6 @@ public class UserProcess {
 			return 0;
 		}
 
-		// Nachos 머신의 메인 메모리에 대한 현재 상태를 Array 로 변환 
-		byte[] memory = Machine.processor().getMemory();
-
 		int transfer = 0;                               // Read 된 Data 의 길이(Byte 단위)를 0으로 초기화
 		int end = vaddr + length - 1;                   // Data 의 끝 Byte에 대한 가상 주솟값 계산
 		
@@ -249,7 +246,7 @@ public class UserProcess {
 			}
 			
 			int paddr = Machine.processor().makeAddress(pageTable[i].ppn, addressOffset); // 실제 물리적 주소(현재 참조되는 Page 에서, Data 복사가 시작되는 주소)를 가져옴
-			System.arraycopy(memory, paddr, data, offset + transfer, amount);             // 지금까지의 정보들(Nachos 메인 메모리, 현재 Page 에서 복사 시작 주소, 복사 끝 주소 Buffer, Copy Data 길이)을 토대로, 실제 Data Read 시작
+			Machine.processor().readPhysicalMemory(paddr, data, offset + transfer, amount); // 지금까지의 정보들(Nachos 메인 메모리, 현재 Page 에서 복사 시작 주소, 복사 끝 주소 Buffer, Copy Data 길이)을 토대로, 실제 Data Read 시작
 
 			// Read 된 Byte 들의 수를 갱신
 			transfer += amount;
@@ -281,8 +278,6 @@ public class UserProcess {
 			return 0;
 		}
 
-		byte[] memory = Machine.processor().getMemory();
-
 		int end = vaddr + length - 1;
 		int transfer = 0;
 
@@ -315,7 +310,7 @@ public class UserProcess {
 			}
 
 			int paddr = Machine.processor().makeAddress(pageTable[i].ppn, addressOffset);
-			System.arraycopy(data, offset + transfer, memory, paddr, amount);
+			Machine.processor().writePhysicalMemory(paddr, data, offset + transfer, amount);
 			transfer += amount;
 		}
 		return transfer;
@@ -676,12 +671,12 @@ public class UserProcess {
 		
 		// Return -1 if the file name is invalid or the list is full
 		int fileDescriptor = getAvailIndex();
-		if(fileName == null || fileDescriptor == -1 || fileDeleteList.contains(fileName)) {
+		if(fileName == null || fileDescriptor == -1) {
 			return -1;
 		}
 
 		// Try creating the OpenFile
-		OpenFile file = UserKernel.fileSystem.open(fileName, true);
+		OpenFile file = openUnlessUnlinked(fileName, true);
 		
 		// Return -1 if the file creation failed
 		if(file == null) {
@@ -711,12 +706,12 @@ public class UserProcess {
 
 		// Return -1 if the file name is invalid or the list is full
 		int fileDescriptor = getAvailIndex();
-		if(fileName == null || fileDescriptor == -1 || fileDeleteList.contains(fileName)) {
+		if(fileName == null || fileDescriptor == -1) {
 			return -1;
 		}
 
 		// Try creating the OpenFile
-		OpenFile file = UserKernel.fileSystem.open(fileName, false);
+		OpenFile file = openUnlessUnlinked(fileName, false);
 
 		// Return -1 if the file creation failed
 		if(file == null) {
@@ -871,17 +866,23 @@ public class UserProcess {
 		filePosList[fileDescriptor] = 0;
 		
 		// Attempt to delete file if this file is unlinked
-		if(fileDeleteList.contains(fileName)) {	
-			if(UserKernel.fileSystem.remove(fileName) == true) {	
-				fileDeleteList.remove(fileName);	
-				return 0;	
-			}	
-			else {
-				return -1;	
-			}	
+		// (most closes only look, so take the write lock only to remove)
+		int result = 0;	// success
+		if(isUnlinked(fileName)) {
+			fileDeleteLock.acquireWrite();
+			// another close may have deleted it since we looked
+			if(fileDeleteList.contains(fileName)) {	
+				if(UserKernel.fileSystem.remove(fileName) == true) {	
+					fileDeleteList.remove(fileName);	
+				}	
+				else {
+					result = -1;	
+				}	
+			}
+			fileDeleteLock.releaseWrite();
 		}	
 		
-		return 0;	// success
+		return result;
 	}
 	
 	/**
@@ -912,11 +913,17 @@ public class UserProcess {
 		// Search for index
 		
 		// Attempt to remove the file from the UserKernel's fileSystem
+		// (under the write lock, so that a close cannot remove it in between)
+		fileDeleteLock.acquireWrite();
 		boolean removeSuccess = UserKernel.fileSystem.remove(fileName);
 
 		// Just unlink if the file is being used by other processes
 		if(removeSuccess == false) {	
 			fileDeleteList.add(fileName);	
+		}	
+		fileDeleteLock.releaseWrite();
+
+		if(removeSuccess == false) {	
 			return -1;	
 		}	
 		
@@ -1024,6 +1031,41 @@ public class UserProcess {
 	
 	/** HashSet of whether the file is to be deleted, not allowing creat or open */
 	private static HashSet<String> fileDeleteList;
+	/** Guards fileDeleteList: creat, open and close read it, unlink and close write it */
+	private static ReadWriteLock fileDeleteLock = new ReadWriteLock();
+	
+	/**
+	 * Test whether a file has been unlinked but not deleted yet, because a
+	 * process still has it open. creat() and open() fail on such a file.
+	 *
+	 * @param fileName the name of the file.
+	 * @return true if the file is waiting to be deleted.
+	 */
+	protected boolean isUnlinked(String fileName) {
+		fileDeleteLock.acquireRead();
+		boolean unlinked = fileDeleteList.contains(fileName);
+		fileDeleteLock.releaseRead();
+		return unlinked;
+	}
+
+	/**
+	 * Open a file for creat() or open(), unless it has been unlinked. The
+	 * read lock is held across the check and the open, so that an unlink
+	 * cannot come in between.
+	 *
+	 * @param fileName the name of the file.
+	 * @param create whether to create the file if it does not exist.
+	 * @return the open file, or null if it is unlinked or cannot be opened.
+	 */
+	private OpenFile openUnlessUnlinked(String fileName, boolean create) {
+		OpenFile file = null;
+		fileDeleteLock.acquireRead();
+		if(!fileDeleteList.contains(fileName)) {
+			file = UserKernel.fileSystem.open(fileName, create);
+		}
+		fileDeleteLock.releaseRead();
+		return file;
+	}
 	
     /**
     protected int getAvailIndex()